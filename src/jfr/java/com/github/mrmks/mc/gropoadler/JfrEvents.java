@@ -0,0 +1,130 @@
+package com.github.mrmks.mc.gropoadler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events of {@link ScriptEvents}. Compiled apart from the main classes,
+ * as jdk.jfr is missing from the Java 8 API, and only loaded by name once JFR is available.
+ */
+final class JfrEvents implements ScriptEvents.Sink {
+
+    private static final EventType COMPILE = EventType.getEventType(Compile.class);
+    private static final EventType EVAL = EventType.getEventType(Eval.class);
+    private static final EventType INVOKE = EventType.getEventType(Invoke.class);
+
+    JfrEvents() {
+        if (!FlightRecorder.isAvailable()) throw new IllegalStateException("Flight Recorder is not available");
+    }
+
+    @Override
+    public Object beginCompile() {
+        return COMPILE.isEnabled() ? begin(new Compile()) : null;
+    }
+
+    @Override
+    public Object beginEval() {
+        return EVAL.isEnabled() ? begin(new Eval()) : null;
+    }
+
+    @Override
+    public Object beginInvoke() {
+        return INVOKE.isEnabled() ? begin(new Invoke()) : null;
+    }
+
+    private static Object begin(Event event) {
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void compile(Object event, String script, int version, int sourceLength, boolean cacheHit) {
+        Compile e = (Compile) event;
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.script = script;
+        e.version = version >= 0 ? version : SharedScriptPool.INSTANCE.version(script);
+        e.sourceLength = sourceLength;
+        e.cacheHit = cacheHit;
+        e.commit();
+    }
+
+    @Override
+    public void eval(Object event, String script, boolean failed) {
+        Eval e = (Eval) event;
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.script = script;
+        e.version = SharedScriptPool.INSTANCE.version(script);
+        e.failed = failed;
+        e.commit();
+    }
+
+    @Override
+    public void invoke(Object event, String script, String function, boolean failed) {
+        Invoke e = (Invoke) event;
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.script = script;
+        e.version = SharedScriptPool.INSTANCE.version(script);
+        e.function = function;
+        e.failed = failed;
+        e.commit();
+    }
+
+    @Name("gropoalder.ScriptCompile")
+    @Label("Script Compile")
+    @Category({"Gropoalder", "Scripts"})
+    @Description("A script class looked up or compiled")
+    @StackTrace(false)
+    static final class Compile extends Event {
+        @Label("Script")
+        String script;
+        @Label("Version")
+        @Description("Pooled version, -1 for scripts which are not pooled")
+        int version;
+        @Label("Source Length")
+        @Description("Characters of the source, -1 when it was not read")
+        int sourceLength;
+        @Label("Cache Hit")
+        boolean cacheHit;
+    }
+
+    @Name("gropoalder.ScriptEval")
+    @Label("Script Eval")
+    @Category({"Gropoalder", "Scripts"})
+    @Description("A script body run by an engine")
+    @StackTrace(false)
+    static final class Eval extends Event {
+        @Label("Script")
+        String script;
+        @Label("Version")
+        @Description("Pooled version, -1 for scripts which are not pooled")
+        int version;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("gropoalder.ScriptInvoke")
+    @Label("Script Invoke")
+    @Category({"Gropoalder", "Scripts"})
+    @Description("A script function called through an engine")
+    @StackTrace(false)
+    static final class Invoke extends Event {
+        @Label("Script")
+        String script;
+        @Label("Version")
+        @Description("Pooled version, -1 for scripts which are not pooled")
+        int version;
+        @Label("Function")
+        String function;
+        @Label("Failed")
+        boolean failed;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class BenchSupport {
+
+    private BenchSupport() {}
+
+    static SharedScriptPool setupPool(StubDataStorage storage) {
+        SharedScriptPool pool = SharedScriptPool.INSTANCE;
+        pool.clear();
+        pool.logger(LogManager.getLogger("gropoalder-bench"));
+        pool.warmup();
+        pool.attach(storage);
+        return pool;
+    }
+
+    static ScriptContext newContext() {
+        SimpleScriptContext ctx = new SimpleScriptContext();
+        ctx.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+        ctx.setWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {}
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        });
+        return ctx;
+    }
+
+    static String resource(String path) {
+        try (InputStream in = BenchSupport.class.getResourceAsStream(path)) {
+            if (in == null) throw new FileNotFoundException(path);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static final class StubDataStorage implements SharedScriptPool.DataStorage {
+
+        private final ConcurrentHashMap<String, SharedScriptPool.VersionSource> map = new ConcurrentHashMap<>();
+
+        @Override
+        public void put(String name, String text, int ver) {
+            map.put(name, new SharedScriptPool.VersionSource() {
+                @Override
+                public String text() {
+                    return text;
+                }
+
+                @Override
+                public int version() {
+                    return ver;
+                }
+            });
+        }
+
+        @Override
+        public SharedScriptPool.VersionSource get(String name) {
+            return map.get(name);
+        }
+
+        @Override
+        public Collection<String> names() {
+            return map.keySet();
+        }
+    }
+}
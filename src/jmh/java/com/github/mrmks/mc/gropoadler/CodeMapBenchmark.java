@@ -0,0 +1,82 @@
+package com.github.mrmks.mc.gropoadler;
+
+import net.minecraft.nbt.NBTTagCompound;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CodeMapBenchmark {
+
+    @Param({"100", "1000"})
+    public int entries;
+
+    @Param({"4096"})
+    public int sourceSize;
+
+    private NBTTagCompound flat;
+    private NBTTagCompound saved;
+    private EventHandle.CodeMap map;
+    private File dir;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder(sourceSize);
+        while (sb.length() < sourceSize) sb.append("def interact(e) { e.npc.say 'hello' }\n");
+        String text = sb.toString();
+
+        flat = new NBTTagCompound();
+        for (int i = 0; i < entries; i++) {
+            NBTTagCompound sub = new NBTTagCompound();
+            sub.setString("text", text + "// " + i);
+            sub.setInteger("ver", i);
+            flat.setTag("bench.Script" + i, sub);
+        }
+
+        dir = Files.createTempDirectory("codemap-bench").toFile();
+        map = newMap();
+        map.readFromNBT(flat);
+        saved = map.writeToNBT(new NBTTagCompound());
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = new File(dir, EventHandle.IDENTIFIER).listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(dir, EventHandle.IDENTIFIER).delete();
+        dir.delete();
+    }
+
+    private EventHandle.CodeMap newMap() {
+        EventHandle.CodeMap m = new EventHandle.CodeMap(EventHandle.IDENTIFIER);
+        m.location(dir);
+        return m;
+    }
+
+    @Benchmark
+    public NBTTagCompound write() {
+        return map.writeToNBT(new NBTTagCompound());
+    }
+
+    @Benchmark
+    public EventHandle.CodeMap read() {
+        EventHandle.CodeMap m = newMap();
+        m.readFromNBT(saved);
+        return m;
+    }
+
+    @Benchmark
+    public EventHandle.CodeMap readFlat() {
+        EventHandle.CodeMap m = newMap();
+        m.readFromNBT(flat);
+        return m;
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+// every parameter combination runs in its own fork, so the settings apply to the shared class cache from the start
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompilerSettingsBenchmark {
+
+    @Param({"true", "false"})
+    public boolean indy;
+
+    @Param({"", "1.8"})
+    public String targetBytecode;
+
+    private Invocable invocable;
+    private String source;
+    private long counter;
+
+    @Setup
+    public void setup() throws ScriptException {
+        Config.indy = indy;
+        Config.targetBytecode = targetBytecode;
+        ScriptEngine engine = new GvyPoolEngineFactory().getScriptEngine();
+        engine.setContext(BenchSupport.newContext());
+        source = "int fib(int n) { n < 2 ? n : fib(n - 1) + fib(n - 2) }\n"
+                + "def walk(list) { list.collect { it.size() }.sum() }\n";
+        engine.eval(source);
+        invocable = (Invocable) engine;
+    }
+
+    @Benchmark
+    public Object invokeFib() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("fib", 15);
+    }
+
+    @Benchmark
+    public Object invokeWalk() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("walk", java.util.Arrays.asList("a", "bb", "ccc"));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public CompiledScript compile() {
+        return CompiledScript.compile(source + "// " + (counter++), "Bench.groovy", CompilerSettings.configuration(), null);
+    }
+}
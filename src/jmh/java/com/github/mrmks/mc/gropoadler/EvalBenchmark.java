@@ -0,0 +1,36 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EvalBenchmark {
+
+    private ScriptEngine engine;
+    private ScriptContext ctx;
+    private String source;
+
+    @Setup
+    public void setup() throws ScriptException {
+        // no storage attached, cacheScript() of the example does not register anything
+        SharedScriptPool.INSTANCE.clear();
+        engine = new GvyPoolEngineFactory().getScriptEngine();
+        ctx = BenchSupport.newContext();
+        source = BenchSupport.resource("/example/Script.groovy");
+        engine.eval(source, ctx);
+    }
+
+    @Benchmark
+    public Object evalExample() throws ScriptException {
+        return engine.eval(source, ctx);
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InvokeBenchmark {
+
+    private Invocable invocable;
+    private Function<Object, Object> proxy;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ScriptException {
+        SharedScriptPool.INSTANCE.clear();
+        ScriptEngine engine = new GvyPoolEngineFactory().getScriptEngine();
+        engine.setContext(BenchSupport.newContext());
+        engine.eval("def interact(e) { e }\n"
+                + "int add(int a, int b) { a + b }\n"
+                + "double half(double x) { x / 2 }\n"
+                + "def apply(x) { x }\n");
+        invocable = (Invocable) engine;
+        proxy = invocable.getInterface(Function.class);
+    }
+
+    @Benchmark
+    public Object invokeFunction() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("interact", "event");
+    }
+
+    @Benchmark
+    public Object invokeFunctionPrimitive() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("add", 1, 2);
+    }
+
+    // an Integer for a double parameter needs Groovy coercion, so this goes through the MethodClosure
+    @Benchmark
+    public Object invokeFunctionCoerced() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("half", 3);
+    }
+
+    @Benchmark
+    public Object interfaceCall() {
+        return proxy.apply("event");
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object interfaceCreateAndCall() {
+        return invocable.getInterface(Function.class).apply("event");
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoaderDispatchBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int scripts;
+
+    private Invocable invocable;
+
+    @Setup
+    public void setup() throws ScriptException {
+        BenchSupport.StubDataStorage storage = new BenchSupport.StubDataStorage();
+        BenchSupport.setupPool(storage);
+
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < scripts; i++) {
+            String name = "bench.Script" + i;
+            // only every other script handles tick
+            String tick = i % 2 == 0 ? "def tick(e) { count++ }\n" : "";
+            storage.put(name, "def interact(e) { e }\n" + tick, 0);
+            if (i > 0) json.append(',');
+            json.append('"').append(name).append("\":{\"count\":0}");
+        }
+        json.append('}');
+
+        ScriptEngine engine = new GvyLoaderEngineFactory().getScriptEngine();
+        engine.setContext(BenchSupport.newContext());
+        engine.eval(json.toString());
+        invocable = (Invocable) engine;
+    }
+
+    @Benchmark
+    public Object fanOutAll() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("interact", "event");
+    }
+
+    @Benchmark
+    public Object fanOutSparse() throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction("tick", "event");
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptEngine;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScriptClassBenchmark {
+
+    private AbstractGroovyEngine engine;
+    private String source;
+    private long counter;
+
+    @Setup
+    public void setup() {
+        engine = (AbstractGroovyEngine) new GvyPoolEngineFactory().getScriptEngine();
+        source = BenchSupport.resource("/example/Script.groovy");
+        engine.getScriptClass(source);
+    }
+
+    @Benchmark
+    public Class<?> hit() {
+        return engine.getScriptClass(source);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Class<?> miss() {
+        // a distinct source every time, so each call compiles
+        return engine.getScriptClass(source + "\n// " + (counter++));
+    }
+}
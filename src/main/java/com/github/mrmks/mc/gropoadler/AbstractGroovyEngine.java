@@ -2,32 +2,52 @@ package com.github.mrmks.mc.gropoadler;
 
 import groovy.lang.*;
 import org.codehaus.groovy.control.CompilationFailedException;
-import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.runtime.InvokerHelper;
 import org.codehaus.groovy.runtime.MetaClassHelper;
-import org.codehaus.groovy.runtime.MethodClosure;
 import org.codehaus.groovy.util.ManagedConcurrentValueMap;
 import org.codehaus.groovy.util.ReferenceBundle;
 
 import javax.script.*;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.Reader;
-import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractGroovyEngine extends AbstractScriptEngine implements Invocable {
     private static boolean debug = false;
 
-    // script-string-to-generated Class map
-    private final ManagedConcurrentValueMap<String, Class<?>> classMap = new ManagedConcurrentValueMap<>(ReferenceBundle.getSoftBundle());
-    // global closures map - this is used to simulate a single
-    // global functions namespace
-    private final ManagedConcurrentValueMap<String, Closure<?>> globalClosures = new ManagedConcurrentValueMap<>(ReferenceBundle.getHardBundle());
-    // class loader for Groovy generated classes
-    private final GroovyClassLoader loader;
+    // global functions map - this is used to simulate a single
+    // global functions namespace, created by the first eval
+    private volatile ManagedConcurrentValueMap<String, ScriptFunction> globalFunctions;
+    // script name -> function name -> resolved global function, dropped whenever the globals change
+    private volatile ConcurrentHashMap<String, ConcurrentHashMap<String, Optional<ScriptFunction>>> resolvedFunctions;
+    // per script class: method name -> whether the script itself can answer the call
+    private static final ClassValue<ConcurrentHashMap<String, Boolean>> localMethods = new ClassValue<ConcurrentHashMap<String, Boolean>>() {
+        @Override
+        protected ConcurrentHashMap<String, Boolean> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    // evals waiting for their background compile, in submission order, created by the first deferred eval
+    private volatile Queue<DeferredEval> deferred;
+    // engines with a deferred eval whose compile finished, run at the end of the server tick
+    private static final Queue<AbstractGroovyEngine> compiled = new ConcurrentLinkedQueue<>();
+    private volatile boolean evaluated;
+    // classes declared by the scripts of this engine, which its later scripts can use, created by the first one
+    private volatile ScriptClassCache.EngineClasses classes;
+    // tasks scheduled by the scripts of this engine, created by the first eval
+    private volatile ScriptScheduler.Group tasks;
     // lazily initialized factory
 //    private volatile GvyPoolEngineFactory factory;
 
@@ -38,15 +58,6 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
         counter = 0;
     }
 
-    @SuppressWarnings("removal") // TODO a future Groovy version should perform the operation not as a privileged action
-    private static GroovyClassLoader createClassLoader() {
-        return java.security.AccessController.doPrivileged((PrivilegedAction<GroovyClassLoader>) () -> new GroovyClassLoader(getParentLoader(), new CompilerConfiguration(CompilerConfiguration.DEFAULT)));
-    }
-
-    protected AbstractGroovyEngine() {
-        this.loader = createClassLoader();
-    }
-
     @Override
     public Object eval(Reader reader, ScriptContext ctx)
             throws ScriptException {
@@ -68,7 +79,7 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
                     bundle = ReferenceBundle.getPhantomBundle();
                 }
             }
-            globalClosures.setBundle(bundle);
+            globals().setBundle(bundle);
         } catch (ClassCastException cce) { /*ignore.*/ }
 
         try {
@@ -81,7 +92,7 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
 
     @Override
     public Bindings createBindings() {
-        return new SimpleBindings();
+        return new CopyOnWriteBindings();
     }
 
     @Override
@@ -117,13 +128,66 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
     }
 
     protected Object delegateEval(String script, ScriptContext ctx) throws ScriptException {
-        Class<?> clazz = getScriptClass(script, ctx);
+        Class<?> clazz;
+        if (Config.asyncCompile) {
+            CompletableFuture<Class<?>> future = getScriptClassAsync(script, ctx);
+            Queue<DeferredEval> queue = deferred;
+            if (!future.isDone() || queue != null && !queue.isEmpty()) {
+                if (queue == null) queue = deferredQueue();
+                String label = scriptLabel(null, ctx);
+                queue.add(new DeferredEval(script, ctx, label, future));
+                future.whenComplete((klass, tr) -> {
+                    if (tr != null) {
+                        SharedScriptPool.INSTANCE.logger().warn("Unable to compile script " + label,
+                                tr instanceof CompletionException && tr.getCause() != null ? tr.getCause() : tr);
+                    }
+                    compiled.add(this);
+                });
+                return null;
+            }
+            clazz = joinClass(future);
+        } else {
+            clazz = getScriptClass(script, ctx);
+        }
+        return evalScriptClass(script, clazz, ctx);
+    }
+
+    private Object evalScriptClass(String script, Class<?> clazz, ScriptContext ctx) throws ScriptException {
         if (clazz == null) throw new ScriptException("Script class is null");
+        List<Class<?>> declared = ScriptClassCache.declared(clazz);
+        if (!declared.isEmpty()) engineClasses().add(declared);
         Object o = delegateEval(clazz, ctx, null);
         postClass(script, clazz);
         return o;
     }
 
+    // run the deferred evals whose class is ready, false if some are still compiling.
+    // failures are logged under the deferred script, the compile ones when the compile finished
+    private boolean runDeferred() {
+        Queue<DeferredEval> queue = deferred;
+        if (queue == null) return true;
+        DeferredEval de;
+        while ((de = queue.peek()) != null && de.future.isDone()) {
+            if (queue.remove(de) && !de.future.isCompletedExceptionally()) {
+                try {
+                    evalScriptClass(de.script, de.future.join(), de.ctx);
+                } catch (ScriptException | RuntimeException e) {
+                    SharedScriptPool.INSTANCE.logger().warn("Deferred eval of script " + de.label + " failed", e);
+                }
+            }
+        }
+        return de == null;
+    }
+
+    // called at the end of every server tick, so deferred evals run without waiting for an invoke
+    static void runCompiled() {
+        for (int n = compiled.size(); n > 0; n--) {
+            AbstractGroovyEngine engine = compiled.poll();
+            if (engine == null) break;
+            engine.runDeferred();
+        }
+    }
+
     protected Object delegateEval(Class<?> klass, ScriptContext ctx, String scriptName) throws ScriptException {
         return eval(klass, ctx, scriptName);
     }
@@ -139,48 +203,87 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
         return callGlobal(scriptName, name, args, ctx);
     }
 
+    // name the given script is reported under, the pooled name or the context FILENAME when known
+    protected String scriptLabel(String scriptName, ScriptContext ctx) {
+        if (scriptName != null) return scriptName;
+        Object filename = ctx == null ? null : ctx.getAttribute(ScriptEngine.FILENAME);
+        return filename != null ? filename.toString() : getFactory().getEngineName();
+    }
+
+    // true if delegateCallGlobal budgets each script it calls, instead of the whole global call
+    protected boolean budgetsPerTarget() {
+        return false;
+    }
+
+    // the global function registered for the given script and method, if any
+    ScriptFunction globalFunction(String scriptName, String name) {
+        ManagedConcurrentValueMap<String, ScriptFunction> globals = globalFunctions;
+        return globals == null ? null : globals.get(generateClosureName(scriptName, name));
+    }
+
+    private ManagedConcurrentValueMap<String, ScriptFunction> globals() {
+        ManagedConcurrentValueMap<String, ScriptFunction> globals = globalFunctions;
+        if (globals == null) {
+            synchronized (this) {
+                if ((globals = globalFunctions) == null) {
+                    globalFunctions = globals = new ManagedConcurrentValueMap<>(ReferenceBundle.getHardBundle());
+                }
+            }
+        }
+        return globals;
+    }
+
+    private synchronized ScriptClassCache.EngineClasses engineClasses() {
+        ScriptClassCache.EngineClasses c = classes;
+        if (c == null) classes = c = new ScriptClassCache.EngineClasses();
+        return c;
+    }
+
+    private synchronized ScriptScheduler.Group taskGroup() {
+        ScriptScheduler.Group group = tasks;
+        if (group == null) tasks = group = new ScriptScheduler.Group();
+        return group;
+    }
+
+    private synchronized Queue<DeferredEval> deferredQueue() {
+        Queue<DeferredEval> queue = deferred;
+        if (queue == null) deferred = queue = new ConcurrentLinkedQueue<>();
+        return queue;
+    }
+
+    /**
+     * Drops everything the evaluated scripts left in this engine: the engine scope bindings, the
+     * global functions, the declared classes, pending deferred evals and scheduled tasks.
+     * The engine can then be given to another script, as if it was just created.
+     */
+    public void reset() {
+        Bindings engine = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (engine != null) {
+            synchronized (context) {
+                engine.clear();
+            }
+        }
+        ScriptScheduler.Group group;
+        synchronized (this) {
+            globalFunctions = null;
+            resolvedFunctions = null;
+            classes = null;
+            deferred = null;
+            evaluated = false;
+            group = tasks;
+            tasks = null;
+        }
+        if (group != null) group.reset();
+    }
+
     // package-privates
     Object eval(Class<?> scriptClass, final ScriptContext ctx, String scriptName) throws ScriptException {
         /*
          * We use the following Binding instance so that global variable lookup
          * will be done in the current ScriptContext instance.
          */
-        Binding binding = new Binding(ctx.getBindings(ScriptContext.ENGINE_SCOPE)) {
-            @Override
-            public Object getVariable(String name) {
-                synchronized (ctx) {
-                    int scope = ctx.getAttributesScope(name);
-                    if (scope != -1) {
-                        return ctx.getAttribute(name, scope);
-                    }
-                    // Redirect script output to context writer, if out var is not already provided
-                    if ("out".equals(name)) {
-                        Writer writer = ctx.getWriter();
-                        if (writer != null) {
-                            return (writer instanceof PrintWriter) ?
-                                    (PrintWriter) writer :
-                                    new PrintWriter(writer, true);
-                        }
-                    }
-                    // Provide access to engine context, if context var is not already provided
-                    if ("context".equals(name)) {
-                        return ctx;
-                    }
-                }
-                throw new MissingPropertyException(name, getClass());
-            }
-
-            @Override
-            public void setVariable(String name, Object value) {
-                synchronized (ctx) {
-                    int scope = ctx.getAttributesScope(name);
-                    if (scope == -1) {
-                        scope = ScriptContext.ENGINE_SCOPE;
-                    }
-                    ctx.setAttribute(name, value, scope);
-                }
-            }
-        };
+        String label = scriptLabel(scriptName, ctx);
+        Binding binding = new ContextBinding(ctx, label, new ScriptScheduler(taskGroup(), label));
 
         try {
             // if this class is not an instance of Script, it's a full-blown class
@@ -190,13 +293,15 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
             } else {
                 // it's a script
                 Script scriptObject = InvokerHelper.createScript(scriptClass, binding);
+                evaluated = true;
 
-                // save all current closures into global closures map
-                Method[] methods = scriptClass.getMethods();
-                for (Method m : methods) {
-                    String name = m.getName();
-                    globalClosures.put(generateClosureName(scriptName, name), new MethodClosure(scriptObject, name));
+                // save all functions declared by the script into global functions map
+                for (Map.Entry<String, List<Method>> entry : ScriptFunction.declaredFunctions(scriptClass).entrySet()) {
+                    String name = entry.getKey();
+                    globals().put(generateClosureName(scriptName, name), ScriptFunction.bind(scriptObject, name, entry.getValue()));
                 }
+                resolvedFunctions = new ConcurrentHashMap<>();
+                ConcurrentHashMap<String, Boolean> locals = localMethods.get(scriptClass);
 
                 MetaClass oldMetaClass = scriptObject.getMetaClass();
 
@@ -223,6 +328,9 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
 
                     @Override
                     public Object invokeMethod(Object object, String name, Object[] args) {
+                        if (!isLocal(object, name)) {
+                            return delegateCallGlobal(scriptName, name, args, ctx);
+                        }
                         try {
                             return super.invokeMethod(object, name, args);
                         } catch (MissingMethodException mme) {
@@ -232,15 +340,45 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
 
                     @Override
                     public Object invokeStaticMethod(Object object, String name, Object[] args) {
+                        if (!isLocal(object, name)) {
+                            return delegateCallGlobal(scriptName, name, args, ctx);
+                        }
                         try {
                             return super.invokeStaticMethod(object, name, args);
                         } catch (MissingMethodException mme) {
                             return delegateCallGlobal(scriptName, name, args, ctx);
                         }
                     }
+
+                    // names without a method, property or methodMissing on the script are known to miss locally,
+                    // a closure in the binding is still called through the script
+                    private boolean isLocal(Object object, String name) {
+                        Boolean local = locals.get(name);
+                        if (local == null) {
+                            local = !respondsTo(object, name).isEmpty()
+                                    || hasProperty(object, name) != null
+                                    || !respondsTo(object, "methodMissing").isEmpty();
+                            locals.putIfAbsent(name, local);
+                        }
+                        return local || object instanceof Script && ((Script) object).getBinding().hasVariable(name);
+                    }
                 });
 
-                return scriptObject.run();
+                ScriptBudget.Frame frame = ScriptBudget.enabled ? ScriptBudget.enter(scriptObject, label) : null;
+                if (frame == ScriptBudget.DEFERRED) return null;
+                long start = ScriptMetrics.start();
+                Object event = ScriptEvents.beginEval();
+                boolean failed = true;
+                try {
+                    Object result = scriptObject.run();
+                    failed = false;
+                    return result;
+                } finally {
+                    if (start != 0L) ScriptMetrics.record(label, "<eval>", start, failed);
+                    if (event != null) ScriptEvents.eval(event, label, failed);
+                    if (Config.asyncOutput) ScriptOutput.flushPending();
+                    ScriptBudget.exit(frame);
+                }
             }
         } catch (Exception e) {
             throw new ScriptException(e);
@@ -254,14 +392,22 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
 
     Class<?> getScriptClass(String script, ScriptContext context)
             throws CompilationFailedException {
-        Class<?> clazz = classMap.get(script);
-        if (clazz != null) {
-            return clazz;
-        }
+        return ScriptClassCache.get(script, classes, () -> scriptLabel(null, context), () -> generateScriptName(context));
+    }
 
-        clazz = loader.parseClass(script, generateScriptName(context));
-        classMap.put(script, clazz);
-        return clazz;
+    // compile on the background executor, concurrent requests for one script share a single compile
+    CompletableFuture<Class<?>> getScriptClassAsync(String script, ScriptContext context) {
+        return ScriptClassCache.lookup(script, classes, () -> scriptLabel(null, context), () -> generateScriptName(context), BackgroundCompiler.POOL);
+    }
+
+    private static Class<?> joinClass(CompletableFuture<Class<?>> future) throws ScriptException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw new ScriptException((Exception) cause);
+            throw e;
+        }
     }
 
     //-- Internals only below this point
@@ -273,12 +419,29 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
             throw new NullPointerException("method name is null");
         }
 
+        // while the first version is still compiling there is nothing to serve, skip the call
+        if (!runDeferred() && thiz == null && !evaluated) {
+            return null;
+        }
+
+        ScriptBudget.Frame frame = ScriptBudget.enabled && (thiz != null || !budgetsPerTarget())
+                ? ScriptBudget.enter(thiz != null ? thiz : this, scriptLabel(null, context)) : null;
+        if (frame == ScriptBudget.DEFERRED) {
+            return null;
+        }
+
+        long start = ScriptMetrics.start();
+        Object event = ScriptEvents.beginInvoke();
+        boolean failed = true;
         try {
+            Object result;
             if (thiz != null) {
-                return InvokerHelper.invokeMethod(thiz, name, args);
+                result = InvokerHelper.invokeMethod(thiz, name, args);
             } else {
-                return callGlobal(name, args);
+                result = callGlobal(name, args);
             }
+            failed = false;
+            return result;
         } catch (MissingMethodException mme) {
             if (mme.getType() == getClass() || mme.getMethod().equals(name) && args == mme.getArguments()) {
                 throw new NoSuchMethodException(mme.getMessage());
@@ -287,6 +450,11 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
             }
         } catch (Exception e) {
             throw e.getCause() instanceof ScriptException ? (ScriptException) e.getCause() : new ScriptException(e);
+        } finally {
+            if (start != 0L) ScriptMetrics.record(scriptLabel(null, context), name, start, failed);
+            if (event != null) ScriptEvents.invoke(event, scriptLabel(null, context), name, failed);
+            if (Config.asyncOutput) ScriptOutput.flushPending();
+            ScriptBudget.exit(frame);
         }
     }
 
@@ -312,9 +480,9 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
     }
 
     private Object callGlobal(String scriptName, String name, Object[] args, ScriptContext ctx) {
-        Closure<?> closure = globalClosures.get(generateClosureName(scriptName, name));
-        if (closure != null) {
-            return closure.call(args);
+        ScriptFunction function = resolveGlobal(scriptName, name);
+        if (function != null) {
+            return function.call(args);
         } else {
             // Look for closure valued variable in the
             // given ScriptContext. If available, call it.
@@ -326,6 +494,19 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
         throw new MissingMethodException(name, getClass(), args);
     }
 
+    private ScriptFunction resolveGlobal(String scriptName, String name) {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, Optional<ScriptFunction>>> resolved = resolvedFunctions;
+        if (resolved == null) return globalFunction(scriptName, name);
+        ConcurrentHashMap<String, Optional<ScriptFunction>> byName = resolved
+                .computeIfAbsent(scriptName == null ? "" : scriptName, k -> new ConcurrentHashMap<>());
+        Optional<ScriptFunction> function = byName.get(name);
+        if (function == null) {
+            function = Optional.ofNullable(globalFunction(scriptName, name));
+            byName.putIfAbsent(name, function);
+        }
+        return function.orElse(null);
+    }
+
     // generate a unique name for top-level Script classes
     private static synchronized String generateScriptName(ScriptContext	context) {
         // If context is available, and contains FILENAME,
@@ -351,21 +532,32 @@ public abstract class AbstractGroovyEngine extends AbstractScriptEngine implemen
                 (proxy, m, args) -> invokeImplSafe(thiz, m.getName(), args));
     }
 
-    // determine appropriate class loader to serve as parent loader
-    // for GroovyClassLoader instance
-    private static ClassLoader getParentLoader() {
-        // check whether thread context loader can "see" Groovy Script class
-        ClassLoader ctxtLoader = Thread.currentThread().getContextClassLoader();
-        try {
-            Class<?> c = ctxtLoader.loadClass(Script.class.getName());
-            if (c == Script.class) {
-                return ctxtLoader;
-            }
-        } catch (ClassNotFoundException cnfe) {
-            /* ignore */
+    private static final class DeferredEval {
+        final String script;
+        final ScriptContext ctx;
+        final String label;
+        final CompletableFuture<Class<?>> future;
+
+        DeferredEval(String script, ScriptContext ctx, String label, CompletableFuture<Class<?>> future) {
+            this.script = script;
+            this.ctx = ctx;
+            this.label = label;
+            this.future = future;
+        }
+    }
+
+    // lazily started daemon pool shared by every engine
+    private static final class BackgroundCompiler {
+        static final ExecutorService POOL;
+
+        static {
+            AtomicInteger id = new AtomicInteger();
+            POOL = Executors.newFixedThreadPool(Config.compileThreads, r -> {
+                Thread t = new Thread(r, "Gropoalder-Compiler-" + id.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
-        // exception was thrown or we get wrong class
-        return Script.class.getClassLoader();
     }
 
     private static String readFully(Reader reader) throws ScriptException {
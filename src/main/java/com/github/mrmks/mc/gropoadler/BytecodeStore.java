@@ -0,0 +1,133 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk cache of compiled script bytecode, one file per pooled script.
+ * Each file records the key it was compiled for, a mismatching key is a miss.
+ * Files end with a CRC32 of their content, a truncated or corrupt file is a miss too.
+ */
+final class BytecodeStore {
+
+    private static final int MAGIC = 0x47504243; // GPBC
+    // bumped whenever the layout changes, 2 added the declared classes and the checksum
+    private static final int FORMAT = 2;
+
+    private final File dir;
+
+    BytecodeStore(File dir) {
+        this.dir = dir;
+    }
+
+    static String key(String sourceHash, String fingerprint) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(sourceHash.getBytes(StandardCharsets.UTF_8));
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    CompiledScript read(String fullName, String key) throws IOException {
+        File file = fileOf(fullName);
+        if (!file.isFile()) return null;
+
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) return null;
+            if (!fullName.equals(in.readUTF()) || !key.equals(in.readUTF())) return null;
+
+            String main = in.readUTF();
+            int count = in.readInt();
+            if (count < 0 || count > file.length()) return null;
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) return null;
+                byte[] code = new byte[length];
+                in.readFully(code);
+                classes.put(name, code);
+            }
+            count = in.readInt();
+            if (count < 0 || count > file.length()) return null;
+            List<String> declared = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) declared.add(in.readUTF());
+
+            int sum = (int) checked.getChecksum().getValue();
+            if (in.readInt() != sum || in.read() != -1) return null;
+            return classes.containsKey(main) ? new CompiledScript(main, classes, Collections.unmodifiableList(declared)) : null;
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    void write(String fullName, String key, CompiledScript script) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+
+        File file = fileOf(fullName);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32());
+        try (DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeUTF(fullName);
+            out.writeUTF(key);
+            out.writeUTF(script.mainClass());
+            out.writeInt(script.classes().size());
+            for (Map.Entry<String, byte[]> entry : script.classes().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.writeInt(script.declared().size());
+            for (String name : script.declared()) out.writeUTF(name);
+            out.writeInt((int) checked.getChecksum().getValue());
+        }
+        replace(tmp, file);
+    }
+
+    static void replace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private File fileOf(String fullName) {
+        StringBuilder sb = new StringBuilder(fullName.length() + 4);
+        for (int i = 0; i < fullName.length(); i++) {
+            char c = fullName.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        return new File(dir, sb.append(".bin").toString());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bytecode of a single compiled script source: the main class name
+ * and every class generated from it (closures, inner classes).
+ * The classes the source declares itself are kept apart, engines and the pool make them visible to later scripts.
+ */
+final class CompiledScript {
+
+    private final String mainClass;
+    private final Map<String, byte[]> classes;
+    private final List<String> declared;
+
+    CompiledScript(String mainClass, Map<String, byte[]> classes, List<String> declared) {
+        this.mainClass = mainClass;
+        this.classes = Collections.unmodifiableMap(classes);
+        this.declared = declared;
+    }
+
+    String mainClass() {
+        return mainClass;
+    }
+
+    Map<String, byte[]> classes() {
+        return classes;
+    }
+
+    List<String> declared() {
+        return declared;
+    }
+
+    static CompiledScript compile(String text, String fileName, CompilerConfiguration config, GroovyClassLoader resolver)
+            throws CompilationFailedException {
+        CompilationUnit unit = new CompilationUnit(config, null, resolver);
+        SourceUnit su = unit.addSource(fileName, text);
+        // before class generation adds the closure classes
+        unit.compile(Phases.SEMANTIC_ANALYSIS);
+        List<String> declared = new ArrayList<>();
+        for (ClassNode cn : su.getAST().getClasses()) {
+            if (!cn.isScript()) declared.add(cn.getName());
+        }
+        unit.compile(Phases.CLASS_GENERATION);
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (GroovyClass gc : unit.getClasses()) {
+            classes.put(gc.getName(), gc.getBytes());
+        }
+        return new CompiledScript(su.getAST().getClasses().get(0).getName(), classes,
+                declared.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(declared));
+    }
+
+    // the classes declared by the source of the given main class, empty if it was not defined by define
+    static List<Class<?>> declaredClasses(Class<?> main) throws ClassNotFoundException {
+        if (!(main.getClassLoader() instanceof BytesLoader)) return Collections.emptyList();
+        BytesLoader bl = (BytesLoader) main.getClassLoader();
+        List<Class<?>> classes = new ArrayList<>(bl.declared.size());
+        for (String name : bl.declared) classes.add(bl.loadClass(name));
+        return classes;
+    }
+
+    // define the classes in a fresh loader, so each compiled script owns its classes
+    @SuppressWarnings("removal")
+    Class<?> define(GroovyClassLoader parent) {
+        BytesLoader bl = java.security.AccessController.doPrivileged((PrivilegedAction<BytesLoader>) () -> new BytesLoader(parent, classes, declared));
+        try {
+            return bl.loadClass(mainClass);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Compiled script is missing its main class: " + mainClass, e);
+        }
+    }
+
+    private static class BytesLoader extends GroovyClassLoader.InnerLoader {
+
+        private final Map<String, byte[]> pending;
+        private final List<String> declared;
+
+        BytesLoader(GroovyClassLoader delegate, Map<String, byte[]> classes, List<String> declared) {
+            super(delegate);
+            this.pending = new LinkedHashMap<>(classes);
+            this.declared = declared;
+        }
+
+        @Override
+        public Class<?> loadClass(String name) throws ClassNotFoundException {
+            Class<?> c = findPending(name);
+            return c != null ? c : super.loadClass(name);
+        }
+
+        @Override
+        public Class loadClass(String name, boolean lookupScriptFiles, boolean preferClassOverScript, boolean resolve)
+                throws ClassNotFoundException, CompilationFailedException {
+            Class<?> c = findPending(name);
+            if (c != null) {
+                if (resolve) resolveClass(c);
+                return c;
+            }
+            return super.loadClass(name, lookupScriptFiles, preferClassOverScript, resolve);
+        }
+
+        private synchronized Class<?> findPending(String name) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                byte[] code = pending.remove(name);
+                if (code != null) c = defineClass(name, code, 0, code.length);
+            }
+            return c;
+        }
+    }
+}
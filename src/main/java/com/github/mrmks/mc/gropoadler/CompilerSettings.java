@@ -0,0 +1,123 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.GroovySystem;
+import groovy.transform.CompileStatic;
+import groovy.transform.ConditionalInterrupt;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.VariableScope;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+final class CompilerSettings {
+
+    // bumped when a customizer of this class changes the code it injects
+    private static final int FORMAT = 2;
+
+    private CompilerSettings() {}
+
+    static CompilerConfiguration configuration() {
+        return configuration(false);
+    }
+
+    // statik applies @CompileStatic to every class, for pooled scripts which ask for it
+    static CompilerConfiguration configuration(boolean statik) {
+        CompilerConfiguration conf = new CompilerConfiguration(CompilerConfiguration.DEFAULT);
+        if (!Config.targetBytecode.isEmpty()) conf.setTargetBytecode(Config.targetBytecode);
+        conf.setParameters(Config.parameters);
+        conf.setPreviewFeatures(Config.previewFeatures);
+
+        Map<String, Boolean> opts = new HashMap<>(conf.getOptimizationOptions());
+        opts.put(CompilerConfiguration.INVOKEDYNAMIC, Config.indy);
+        for (String option : Config.optimizationOptions) {
+            int i = option.indexOf('=');
+            if (i > 0) opts.put(option.substring(0, i).trim(), Boolean.parseBoolean(option.substring(i + 1).trim()));
+        }
+        conf.setOptimizationOptions(opts);
+
+        if (Config.budget) conf.addCompilationCustomizers(new BudgetCustomizer());
+        if (statik) conf.addCompilationCustomizers(new StaticCustomizer());
+        return conf;
+    }
+
+    // everything that changes the generated bytecode, used to key compiled-class caches
+    static String fingerprint(CompilerConfiguration conf) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("format=").append(FORMAT);
+        sb.append(";groovy=").append(GroovySystem.getVersion());
+        sb.append(";target=").append(conf.getTargetBytecode());
+        sb.append(";parameters=").append(conf.getParameters());
+        sb.append(";preview=").append(conf.isPreviewFeatures());
+        sb.append(";base=").append(conf.getScriptBaseClass());
+        sb.append(";debug=").append(conf.getDebug());
+        Map<String, Boolean> opts = conf.getOptimizationOptions();
+        if (opts != null) sb.append(";opts=").append(new TreeMap<>(opts));
+        for (CompilationCustomizer cc : conf.getCompilationCustomizers()) {
+            sb.append(";cc=").append(cc.getClass().getName());
+        }
+        return sb.toString();
+    }
+
+    // own class so the fingerprint tells it apart from other AST customizers
+    private static class StaticCustomizer extends CompilationCustomizer {
+        private final ASTTransformationCustomizer delegate;
+
+        StaticCustomizer() {
+            this(new ASTTransformationCustomizer(CompileStatic.class));
+        }
+
+        private StaticCustomizer(ASTTransformationCustomizer delegate) {
+            super(delegate.getPhase());
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+            delegate.call(source, context, classNode);
+        }
+    }
+
+    // @ConditionalInterrupt({ ScriptBudget.check() }) on every class, like TimedInterrupt but with a per-call deadline.
+    // check() throws the ScriptBudgetException itself, the one of the transform has no usable message
+    private static class BudgetCustomizer extends CompilationCustomizer {
+        private final ASTTransformationCustomizer delegate;
+
+        BudgetCustomizer() {
+            this(new ASTTransformationCustomizer(parameters(), ConditionalInterrupt.class));
+        }
+
+        private BudgetCustomizer(ASTTransformationCustomizer delegate) {
+            super(delegate.getPhase());
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+            delegate.call(source, context, classNode);
+        }
+
+        private static Map<String, Object> parameters() {
+            ClosureExpression condition = new ClosureExpression(Parameter.EMPTY_ARRAY, new ExpressionStatement(
+                    new StaticMethodCallExpression(ClassHelper.make(ScriptBudget.class), "check", ArgumentListExpression.EMPTY_ARGUMENTS)));
+            condition.setVariableScope(new VariableScope());
+
+            Map<String, Object> params = new HashMap<>();
+            params.put("value", condition);
+            params.put("thrown", new ClassExpression(ClassHelper.make(ScriptBudgetException.class)));
+            return params;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.mrmks.mc.gropoadler;
+
+import net.minecraftforge.common.config.Configuration;
+import org.codehaus.groovy.control.CompilerConfiguration;
+
+import java.io.File;
+
+final class Config {
+
+    private static final String POOL = "pool";
+    private static final String ENGINE = "engine";
+    private static final String BUDGET = "budget";
+    private static final String STORAGE = "storage";
+    private static final String COMPILER = "compiler";
+    private static final String OUTPUT = "output";
+    private static final String TASKS = "tasks";
+
+    // compile every pooled script in the background when the server starts
+    static boolean precompile = false;
+    static int precompileThreads = 2;
+    static boolean precompileWait = false;
+
+    // pooled script versions kept defined, the least recently used beyond are evicted
+    static int maxLoadedScripts = 512;
+    static int idleMinutes = 30;
+
+    // compile engine scripts off the calling thread
+    static boolean asyncCompile = false;
+    static int compileThreads = 2;
+
+    // workers running @ThreadSafe functions of GvyLoader scripts in parallel, 0 keeps every call sequential
+    static int fanOutThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // emit Flight Recorder events for scripts while a recording wants them
+    static boolean jfrEvents = true;
+
+    // record per script call metrics from the start
+    static boolean metrics = false;
+
+    // compile scripts with interrupt checks and enforce time budgets
+    static boolean budget = false;
+    static int budgetPerCallMillis = 50;
+    static int budgetPerTickMillis = 20;
+
+    // settings of every compiler configuration this mod creates, empty or missing means the Groovy default
+    static boolean indy = true;
+    static String targetBytecode = "";
+    static boolean parameters = false;
+    static boolean previewFeatures = false;
+    static String[] optimizationOptions = new String[0];
+
+    // save changed script sources on a background thread instead of with the world
+    static boolean asyncSave = false;
+
+    // "world" keeps scripts in the world data, "mapped" in files shared by every world and server
+    static String storage = "world";
+    static String mappedDirectory = "";
+    static boolean importWorldScripts = true;
+
+    // script output written by a background thread
+    static boolean asyncOutput = false;
+    static int outputQueueSize = 4096;
+    static String outputWhenFull = "drop";
+    static int outputLinesPerSecond = 0;
+
+    // workers running async tasks of scripts, and the tasks one script of an engine may have pending
+    static int taskThreads = 2;
+    static int tasksPerScript = 64;
+
+    // .groovy files registered to the pool whenever they change
+    static String watchDirectory = "";
+    static int watchDelayMillis = 500;
+
+    private Config() {}
+
+    static void load(File file) {
+        Configuration cfg = new Configuration(file);
+        cfg.load();
+
+        precompile = cfg.getBoolean("precompile", POOL, precompile,
+                "Compile every pooled script on a worker pool when the server starts");
+        precompileThreads = cfg.getInt("precompileThreads", POOL, precompileThreads, 1, 64,
+                "Number of worker threads used to precompile pooled scripts");
+        precompileWait = cfg.getBoolean("precompileWait", POOL, precompileWait,
+                "Hold server start until every pooled script is precompiled");
+        maxLoadedScripts = cfg.getInt("maxLoadedScripts", POOL, maxLoadedScripts, 0, 1 << 20,
+                "Pooled script classes kept loaded, the least recently used are evicted beyond this, 0 for no limit");
+        idleMinutes = cfg.getInt("idleMinutes", POOL, idleMinutes, 0, 7 * 24 * 60,
+                "Evict pooled script classes which were not used for this long, 0 to keep them");
+        watchDirectory = cfg.getString("watchDirectory", POOL, watchDirectory,
+                "Directory of .groovy files compiled and registered to the pool in the background whenever they change, empty to disable");
+        watchDelayMillis = cfg.getInt("watchDelayMillis", POOL, watchDelayMillis, 0, 60000,
+                "Time a changed file must stay unchanged before it is reloaded, so half written files are skipped");
+
+        asyncCompile = cfg.getBoolean("asyncCompile", ENGINE, asyncCompile,
+                "Compile evaluated scripts in the background, the previous version keeps serving until it is ready");
+        compileThreads = cfg.getInt("compileThreads", ENGINE, compileThreads, 1, 64,
+                "Number of background threads compiling evaluated scripts");
+        fanOutThreads = cfg.getInt("fanOutThreads", ENGINE, fanOutThreads, 0, 64,
+                "Worker threads calling @ThreadSafe functions of GvyLoader scripts in parallel, 0 to call them one after another");
+        jfrEvents = cfg.getBoolean("jfrEvents", ENGINE, jfrEvents,
+                "Emit gropoalder.Script* Flight Recorder events for compiles, evals and calls, they cost nothing unless a recording enables them. Needs a JVM with Flight Recorder, Java 8u262 or later");
+        metrics = cfg.getBoolean("metrics", ENGINE, metrics,
+                "Record call counts and latency per script function, see /gvymetrics and the ScriptMetrics MBean");
+
+        budget = cfg.getBoolean("enabled", BUDGET, budget,
+                "Compile scripts with loop and method entry checks, calls over budget are aborted and reported");
+        budgetPerCallMillis = cfg.getInt("perCallMillis", BUDGET, budgetPerCallMillis, 1, 60000,
+                "Time a single script call may take before it is aborted");
+        budgetPerTickMillis = cfg.getInt("perTickMillis", BUDGET, budgetPerTickMillis, 1, 60000,
+                "Time a script may use per server tick, further calls are skipped until the next tick");
+
+        indy = cfg.getBoolean("indy", COMPILER, indy,
+                "Compile dynamic calls to invokedynamic call sites instead of call site arrays");
+        String[] targets = new String[CompilerConfiguration.ALLOWED_JDKS.length + 1];
+        targets[0] = "";
+        System.arraycopy(CompilerConfiguration.ALLOWED_JDKS, 0, targets, 1, CompilerConfiguration.ALLOWED_JDKS.length);
+        targetBytecode = cfg.getString("targetBytecode", COMPILER, targetBytecode,
+                "Bytecode version of compiled scripts, e.g. 1.8 or 11, empty for the version of the running JVM", targets);
+        parameters = cfg.getBoolean("parameters", COMPILER, parameters,
+                "Keep method parameter names in compiled scripts");
+        previewFeatures = cfg.getBoolean("previewFeatures", COMPILER, previewFeatures,
+                "Allow preview features of the target JVM");
+        optimizationOptions = cfg.getStringList("optimizationOptions", COMPILER, optimizationOptions,
+                "Further Groovy optimization options as name=true or name=false, e.g. int=false");
+
+        asyncSave = cfg.getBoolean("asyncSave", STORAGE, asyncSave,
+                "Write changed script sources and the script index on a background thread right after they change");
+        storage = cfg.getString("backend", STORAGE, storage,
+                "Where pooled scripts are kept: world (groovy.codeMap in the world data) or mapped (shared append-only files)",
+                new String[] {"world", "mapped"});
+        mappedDirectory = cfg.getString("mappedDirectory", STORAGE, mappedDirectory,
+                "Directory of the mapped backend, several servers may share it, empty means config/gropoalder/scripts");
+        importWorldScripts = cfg.getBoolean("importWorldScripts", STORAGE, importWorldScripts,
+                "Copy scripts from a world's groovy.codeMap into the mapped backend when the world is loaded");
+
+        asyncOutput = cfg.getBoolean("async", OUTPUT, asyncOutput,
+                "Buffer what scripts print and write it to the console on a background thread");
+        outputQueueSize = cfg.getInt("queueSize", OUTPUT, outputQueueSize, 16, 1 << 20,
+                "Printed chunks waiting to be written before whenFull applies");
+        outputWhenFull = cfg.getString("whenFull", OUTPUT, outputWhenFull,
+                "What a script printing into a full queue does: drop the output or block until there is room",
+                new String[] {"drop", "block"});
+        outputLinesPerSecond = cfg.getInt("linesPerSecond", OUTPUT, outputLinesPerSecond, 0, 1 << 20,
+                "Lines each script may print per second, further lines are suppressed and counted, 0 for no limit");
+
+        taskThreads = cfg.getInt("threads", TASKS, taskThreads, 1, 64,
+                "Worker threads running the work scripts hand to scheduler.async");
+        tasksPerScript = cfg.getInt("perScript", TASKS, tasksPerScript, 1, 1 << 16,
+                "Async and delayed tasks a script of one engine may have pending, further ones fail");
+
+        if (cfg.hasChanged()) cfg.save();
+    }
+}
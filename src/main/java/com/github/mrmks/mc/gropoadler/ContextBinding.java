@@ -0,0 +1,108 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.Binding;
+import groovy.lang.MissingPropertyException;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Binding which looks global variables up in a {@link ScriptContext}.
+ * The scopes and the output writer are resolved into an immutable snapshot, which is
+ * replaced when the context hands out different objects. Scopes which can be read while
+ * they are written, like {@link CopyOnWriteBindings}, are read without a lock, anything
+ * else and every write is done holding the lock of the context.
+ * With async output `out` is buffered and written by {@link ScriptOutput}.
+ */
+final class ContextBinding extends Binding {
+
+    private final ScriptContext ctx;
+    // the script the output is reported for when rate limited
+    private final String label;
+    private final ScriptScheduler scheduler;
+    private volatile Slots slots;
+
+    ContextBinding(ScriptContext ctx, String label, ScriptScheduler scheduler) {
+        super(ctx.getBindings(ScriptContext.ENGINE_SCOPE));
+        this.ctx = ctx;
+        this.label = label;
+        this.scheduler = scheduler;
+        this.slots = new Slots(ctx, label);
+    }
+
+    @Override
+    public Object getVariable(String name) {
+        Slots s = slots();
+        if (s.concurrent) {
+            Object value = s.engine.get(name);
+            if (value != null || s.engine.containsKey(name)) return value;
+            if (s.global != null) {
+                value = s.global.get(name);
+                if (value != null || s.global.containsKey(name)) return value;
+            }
+        } else {
+            synchronized (ctx) {
+                int scope = ctx.getAttributesScope(name);
+                if (scope != -1) {
+                    return ctx.getAttribute(name, scope);
+                }
+            }
+        }
+        // Redirect script output to context writer, if out var is not already provided
+        if (s.out != null && "out".equals(name)) {
+            return s.out;
+        }
+        // Provide access to engine context, if context var is not already provided
+        if ("context".equals(name)) {
+            return ctx;
+        }
+        // Provide the task scheduler, if scheduler var is not already provided
+        if ("scheduler".equals(name)) {
+            return scheduler;
+        }
+        throw new MissingPropertyException(name, getClass());
+    }
+
+    @Override
+    public void setVariable(String name, Object value) {
+        synchronized (ctx) {
+            int scope = ctx.getAttributesScope(name);
+            if (scope == -1) {
+                scope = ScriptContext.ENGINE_SCOPE;
+            }
+            ctx.setAttribute(name, value, scope);
+        }
+    }
+
+    private Slots slots() {
+        Slots s = slots;
+        if (s.engine != ctx.getBindings(ScriptContext.ENGINE_SCOPE)
+                || s.global != ctx.getBindings(ScriptContext.GLOBAL_SCOPE)
+                || s.writer != ctx.getWriter()) {
+            slots = s = new Slots(ctx, label);
+        }
+        return s;
+    }
+
+    private static final class Slots {
+        final Bindings engine;
+        final Bindings global;
+        final Writer writer;
+        final PrintWriter out;
+        // both scopes are safe to read unlocked, contexts with extra scopes go through the ScriptContext lookup
+        final boolean concurrent;
+
+        Slots(ScriptContext ctx, String label) {
+            engine = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+            global = ctx.getBindings(ScriptContext.GLOBAL_SCOPE);
+            writer = ctx.getWriter();
+            if (writer == null) out = null;
+            else if (Config.asyncOutput) out = ScriptOutput.printer(ctx, writer, label);
+            else out = writer instanceof PrintWriter ? (PrintWriter) writer : new PrintWriter(writer, true);
+            concurrent = engine != null && ctx.getScopes().size() == 2 && CopyOnWriteBindings.concurrent(engine)
+                    && (global == null || CopyOnWriteBindings.concurrent(global));
+        }
+    }
+}
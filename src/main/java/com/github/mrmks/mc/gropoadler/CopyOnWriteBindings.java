@@ -0,0 +1,84 @@
+package com.github.mrmks.mc.gropoadler;
+
+import javax.script.Bindings;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bindings made by createBindings of the groovy engines: reads go to an immutable snapshot without a lock,
+ * every write copies it under the lock of this object. Bindings are read far more often
+ * than written, and fan-out calls and scheduled tasks read them from other threads.
+ */
+final class CopyOnWriteBindings extends AbstractMap<String, Object> implements Bindings {
+
+    private volatile Map<String, Object> map = Collections.emptyMap();
+
+    // true if the bindings can be read while another thread writes them
+    static boolean concurrent(Map<String, Object> bindings) {
+        return bindings instanceof CopyOnWriteBindings
+                || bindings instanceof ConcurrentMap
+                || bindings instanceof LayeredBindings && ((LayeredBindings) bindings).concurrent();
+    }
+
+    @Override
+    public Object get(Object key) {
+        checkKey(key);
+        return map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        checkKey(key);
+        return map.containsKey(key);
+    }
+
+    @Override
+    public synchronized Object put(String name, Object value) {
+        checkKey(name);
+        Map<String, Object> copy = new HashMap<>(map);
+        Object old = copy.put(name, value);
+        map = copy;
+        return old;
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends String, ?> toMerge) {
+        for (String key : toMerge.keySet()) checkKey(key);
+        Map<String, Object> copy = new HashMap<>(map);
+        copy.putAll(toMerge);
+        map = copy;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        checkKey(key);
+        if (!map.containsKey(key)) return null;
+        Map<String, Object> copy = new HashMap<>(map);
+        Object old = copy.remove(key);
+        map = copy;
+        return old;
+    }
+
+    @Override
+    public synchronized void clear() {
+        map = Collections.emptyMap();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    // the current snapshot, changes go through put and remove
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(map).entrySet();
+    }
+
+    // same checks as SimpleBindings
+    static void checkKey(Object key) {
+        if (key == null) throw new NullPointerException("key can not be null");
+        if (!(key instanceof String)) throw new ClassCastException("key should be a String");
+        if (((String) key).isEmpty()) throw new IllegalArgumentException("key can not be empty");
+    }
+}
@@ -1,14 +1,24 @@
 package com.github.mrmks.mc.gropoadler;
 
+import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.world.storage.MapStorage;
 import net.minecraft.world.storage.WorldSavedData;
 import net.minecraftforge.common.DimensionManager;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.event.*;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Mod.EventBusSubscriber
 @Mod(modid = "grypolader", acceptableRemoteVersions = "*")
@@ -16,19 +26,97 @@ public class EventHandle {
 
     public static final String IDENTIFIER = "groovy.codeMap";
 
+    private static final int SWEEP_TICKS = 1200;
+    private static int ticks;
+
+    private DataStorageImpl storage;
+    private MappedDataStorage mapped;
+    private ScriptWatcher watcher;
+
     @Mod.EventHandler
     public void onPreFMLInitialize(FMLPreInitializationEvent event) {
         SharedScriptPool.INSTANCE.logger(event.getModLog());
+        Config.load(event.getSuggestedConfigurationFile());
+        ScriptMetrics.INSTANCE.setEnabled(Config.metrics);
+        ScriptBudget.perCallNanos = TimeUnit.MILLISECONDS.toNanos(Config.budgetPerCallMillis);
+        ScriptBudget.perTickNanos = TimeUnit.MILLISECONDS.toNanos(Config.budgetPerTickMillis);
+        ScriptBudget.enabled = Config.budget;
+        if (Config.asyncOutput) {
+            ScriptOutput.capacity = Config.outputQueueSize;
+            ScriptOutput.block = "block".equals(Config.outputWhenFull);
+            ScriptOutput.linesPerSecond = Config.outputLinesPerSecond;
+        }
+        SharedScriptPool.INSTANCE.limits(Config.maxLoadedScripts, TimeUnit.MINUTES.toMillis(Config.idleMinutes));
+        try {
+            ScriptMetrics.register();
+        } catch (JMException e) {
+            event.getModLog().warn("Unable to register the script metrics MBean", e);
+        }
+        if ("mapped".equals(Config.storage)) {
+            File dir = Config.mappedDirectory.isEmpty()
+                    ? new File(event.getModConfigurationDirectory(), "gropoalder/scripts")
+                    : new File(Config.mappedDirectory);
+            // needs no world, so the pool serves it from now on. Attached again at every server start
+            try {
+                mapped = new MappedDataStorage(dir);
+                SharedScriptPool.INSTANCE.attach(mapped);
+            } catch (IOException e) {
+                event.getModLog().warn("Unable to open the script storage in " + dir + ", using the world storage", e);
+            }
+        }
     }
 
     @Mod.EventHandler
     public void onServerStarting(FMLServerStartingEvent event) {
+        event.registerServerCommand(new ScriptMetricsCommand());
         SharedScriptPool.INSTANCE.warmup();
-        SharedScriptPool.INSTANCE.attach(new DataStorageImpl());
+        if (mapped != null) {
+            if (Config.importWorldScripts) {
+                int count = mapped.importFrom(new DataStorageImpl());
+                if (count > 0) SharedScriptPool.INSTANCE.logger().info("Imported " + count + " scripts from " + IDENTIFIER);
+            }
+            SharedScriptPool.INSTANCE.attach(mapped);
+        } else {
+            SharedScriptPool.INSTANCE.attach(storage = new DataStorageImpl());
+        }
+        SharedScriptPool.INSTANCE.attachBytecodeCache(new File(DimensionManager.getCurrentSaveRootDirectory(), "data/" + IDENTIFIER + ".classes"));
+        if (Config.precompile) SharedScriptPool.INSTANCE.precompile(Config.precompileThreads, Config.precompileWait);
+        if (!Config.watchDirectory.isEmpty()) {
+            try {
+                watcher = new ScriptWatcher(new File(Config.watchDirectory).toPath(), Config.watchDelayMillis);
+                watcher.start();
+            } catch (IOException e) {
+                SharedScriptPool.INSTANCE.logger().warn("Unable to watch scripts in " + Config.watchDirectory, e);
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            AbstractGroovyEngine.runCompiled();
+            ScriptWatcher.tick();
+            ScriptScheduler.tick();
+            return;
+        }
+        if (ScriptBudget.enabled) ScriptBudget.newTick();
+        if (++ticks % SWEEP_TICKS == 0) SharedScriptPool.INSTANCE.sweep();
     }
 
     @Mod.EventHandler
     public void onServerStopping(FMLServerStoppedEvent event) {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                SharedScriptPool.INSTANCE.logger().warn("Unable to stop watching scripts", e);
+            }
+            watcher = null;
+        }
+        ScriptScheduler.clear();
+        if (Config.asyncOutput) ScriptOutput.flush(1000);
+        if (storage != null) storage.flush();
+        storage = null;
         SharedScriptPool.INSTANCE.clear();
     }
 
@@ -38,12 +126,13 @@ public class EventHandle {
 
         @Override
         public void put(String name, String text, int ver) {
+            put(name, text, ver, false);
+        }
+
+        @Override
+        public void put(String name, String text, int ver, boolean statik) {
             checkMap();
-            if (map != null) {
-                VersionSourceImpl vs = new VersionSourceImpl(text, ver);
-                SharedScriptPool.VersionSource old = map.map.put(name, vs);
-                if (!vs.equals(old)) map.markDirty();
-            }
+            if (map != null) map.put(name, text, ver, statik);
         }
 
         @Override
@@ -52,6 +141,16 @@ public class EventHandle {
             return map != null ? map.map.get(name) : null;
         }
 
+        void flush() {
+            if (map != null) map.flush();
+        }
+
+        @Override
+        public Collection<String> names() {
+            checkMap();
+            return map != null ? map.map.keySet() : SharedScriptPool.DataStorage.super.names();
+        }
+
         private void checkMap() {
             if (map == null) {
                 synchronized (this) {
@@ -63,6 +162,7 @@ public class EventHandle {
                         if (wsd == null) storage.setData(IDENTIFIER, wsd = new CodeMap());
 
                         map = (CodeMap) wsd;
+                        map.migrate();
                     }
                 }
             }
@@ -71,7 +171,17 @@ public class EventHandle {
 
     public static class CodeMap extends WorldSavedData {
 
+        // entries hold a version and the hash of a deflated source file instead of the text
+        private static final int FORMAT = 2;
+
         ConcurrentHashMap<String, SharedScriptPool.VersionSource> map;
+        private SourceStore sources;
+        private File indexFile;
+        // read from the flat layout, which stored every text inline
+        private boolean legacy;
+        // hashes referenced by the index currently on disk
+        private Set<String> saved = Collections.emptySet();
+        private final AtomicBoolean saveQueued = new AtomicBoolean();
 
         public CodeMap(String name) {
             super(name);
@@ -82,47 +192,176 @@ public class EventHandle {
             map = new ConcurrentHashMap<>();
         }
 
+        void location(File dataDir) {
+            sources = new SourceStore(new File(dataDir, IDENTIFIER));
+            indexFile = new File(dataDir, IDENTIFIER + ".dat");
+        }
+
+        private SourceStore sources() {
+            if (sources == null) location(new File(DimensionManager.getCurrentSaveRootDirectory(), "data"));
+            return sources;
+        }
+
         @Override
         public void readFromNBT(NBTTagCompound nbt) {
             map = new ConcurrentHashMap<>();
-            if (nbt != null) {
+            if (nbt == null) return;
+            if (nbt.getInteger("format") == FORMAT) {
+                NBTTagCompound entries = nbt.getCompoundTag("entries");
+                Set<String> hashes = new HashSet<>();
+                for (String k : entries.getKeySet()) {
+                    NBTTagCompound entry = entries.getCompoundTag(k);
+                    String hash = entry.getString("hash");
+                    hashes.add(hash);
+                    map.put(k, new VersionSourceImpl(sources(), null, hash, entry.getInteger("ver"), entry.getBoolean("static")));
+                }
+                saved = hashes;
+            } else {
                 for (String k : nbt.getKeySet()) {
                     NBTTagCompound compound = nbt.getCompoundTag(k);
                     String text = compound.getString("text");
                     int ver = compound.getInteger("ver");
 
-                    map.put(k, new VersionSourceImpl(text, ver));
+                    map.put(k, new VersionSourceImpl(sources(), text, SourceStore.hash(text), ver, false));
                 }
+                legacy = !map.isEmpty();
             }
         }
 
         @Override
         public NBTTagCompound writeToNBT(NBTTagCompound compound) {
             if (compound == null) compound = new NBTTagCompound();
-            if (map == null || map.isEmpty()) return compound;
-            for (Map.Entry<String, SharedScriptPool.VersionSource> entry : map.entrySet()) {
-                NBTTagCompound sub = new NBTTagCompound();
-                SharedScriptPool.VersionSource vs = entry.getValue();
-                sub.setString("text", vs.text());
-                sub.setInteger("ver", vs.version());
-                compound.setTag(entry.getKey(), sub);
-            }
+            Set<String> used = writeIndex(compound);
+            // the index on disk is only replaced after this returns, keep its files until the next save
+            Set<String> keep = new HashSet<>(used);
+            keep.addAll(saved);
+            sources().retain(keep);
+            saved = used;
             return compound;
         }
+
+        // writes sources which are not on disk yet and fills the index, returns the referenced hashes
+        private Set<String> writeIndex(NBTTagCompound compound) {
+            Set<String> used = new HashSet<>();
+            compound.setInteger("format", FORMAT);
+            NBTTagCompound entries = new NBTTagCompound();
+            if (map != null) {
+                for (Map.Entry<String, SharedScriptPool.VersionSource> entry : map.entrySet()) {
+                    VersionSourceImpl vs = (VersionSourceImpl) entry.getValue();
+                    try {
+                        vs.write();
+                    } catch (IOException e) {
+                        SharedScriptPool.INSTANCE.logger().warn("Unable to write the source of " + entry.getKey(), e);
+                        continue;
+                    }
+                    NBTTagCompound sub = new NBTTagCompound();
+                    sub.setString("hash", vs.hash);
+                    sub.setInteger("ver", vs.ver);
+                    if (vs.statik) sub.setBoolean("static", true);
+                    entries.setTag(entry.getKey(), sub);
+                    used.add(vs.hash);
+                }
+            }
+            compound.setTag("entries", entries);
+            return used;
+        }
+
+        void put(String name, String text, int ver, boolean statik) {
+            VersionSourceImpl vs = new VersionSourceImpl(sources(), text, SourceStore.hash(text), ver, statik);
+            SharedScriptPool.VersionSource old = map.put(name, vs);
+            if (!vs.equals(old)) changed();
+        }
+
+        // called after an entry changed, saves through the world or on the writer thread
+        void changed() {
+            if (!Config.asyncSave) {
+                markDirty();
+            } else if (saveQueued.compareAndSet(false, true)) {
+                Saver.EXECUTOR.execute(this::save);
+            }
+        }
+
+        void migrate() {
+            if (legacy) {
+                legacy = false;
+                SharedScriptPool.INSTANCE.logger().info("Moving " + map.size() + " scripts of " + IDENTIFIER + " to compressed source files");
+                changed();
+            }
+        }
+
+        private void save() {
+            saveQueued.set(false);
+            try {
+                sources();
+                NBTTagCompound index = new NBTTagCompound();
+                Set<String> used = writeIndex(index);
+                NBTTagCompound root = new NBTTagCompound();
+                root.setTag("data", index);
+
+                File tmp = new File(indexFile.getPath() + ".tmp");
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    CompressedStreamTools.writeCompressed(root, out);
+                }
+                BytecodeStore.replace(tmp, indexFile);
+                sources.retain(used);
+                saved = used;
+            } catch (IOException e) {
+                SharedScriptPool.INSTANCE.logger().warn("Unable to save " + IDENTIFIER, e);
+            }
+        }
+
+        // waits for queued saves
+        void flush() {
+            if (!Config.asyncSave) return;
+            try {
+                Saver.EXECUTOR.submit(() -> {}).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                SharedScriptPool.INSTANCE.logger().warn("Unable to save " + IDENTIFIER, e.getCause());
+            }
+        }
+
+        private static class Saver {
+            static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Gropoalder-CodeMap-Writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
     }
 
     private static class VersionSourceImpl implements SharedScriptPool.VersionSource {
 
-        private final String text;
+        private final SourceStore store;
+        private final String hash;
         private final int ver;
-        VersionSourceImpl(String text, int ver) {
+        private final boolean statik;
+        // only held until the text is in the source store, then it is decoded on demand
+        private volatile String text;
+
+        VersionSourceImpl(SourceStore store, String text, String hash, int ver, boolean statik) {
+            this.store = store;
             this.text = text;
+            this.hash = hash;
             this.ver = Math.max(ver, 0);
+            this.statik = statik;
         }
 
         @Override
         public String text() {
-            return text;
+            String t = text;
+            if (t != null) return t;
+            try {
+                return store.read(hash);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read script source " + hash, e);
+            }
+        }
+
+        @Override
+        public String hash() {
+            return hash;
         }
 
         @Override
@@ -130,17 +369,31 @@ public class EventHandle {
             return ver;
         }
 
+        @Override
+        public boolean isStatic() {
+            return statik;
+        }
+
+        void write() throws IOException {
+            String t = text;
+            if (t != null) {
+                store.write(hash, t);
+                text = null;
+            }
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (obj == this) return true;
             if (!(obj instanceof SharedScriptPool.VersionSource)) return false;
             SharedScriptPool.VersionSource that = (SharedScriptPool.VersionSource) obj;
-            return that.text().equals(text) && that.version() == ver;
+            String thatHash = that.hash();
+            return that.version() == ver && that.isStatic() == statik && (thatHash != null ? thatHash.equals(hash) : that.text().equals(text()));
         }
 
         @Override
         public int hashCode() {
-            return text.hashCode() ^ ver;
+            return hash.hashCode() ^ ver;
         }
     }
 }
@@ -1,16 +1,22 @@
 package com.github.mrmks.mc.gropoadler;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import groovy.lang.Closure;
 import groovy.lang.MissingMethodException;
 
 import javax.script.*;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GvyLoaderEngineFactory implements ScriptEngineFactory {
+
     @Override
     public String getEngineName() {
         return "GvyLoader";
@@ -83,8 +89,11 @@ public class GvyLoaderEngineFactory implements ScriptEngineFactory {
 
     private class EngineImpl extends AbstractGroovyEngine {
 
-        private final ConcurrentHashMap<String, DelegateScriptContext> perScriptContext = new ConcurrentHashMap<>();
-        private final Set<String> scriptMethodExcludes = Collections.synchronizedSet(new HashSet<>());
+        // both created by the first eval
+        private volatile ConcurrentHashMap<String, DelegateScriptContext> perScriptContext;
+        private volatile ConcurrentHashMap<String, Class<?>> perScriptClass;
+        // function name -> one target per loaded script, null where the script lacks the function
+        private volatile DispatchTable dispatch = DispatchTable.EMPTY;
 
         @Override
         public ScriptEngineFactory getFactory() {
@@ -93,28 +102,57 @@ public class GvyLoaderEngineFactory implements ScriptEngineFactory {
 
         @Override
         protected Object delegateEval(String script, ScriptContext ctx0) throws ScriptException {
-            Gson gson = new Gson();
-            HashMap<String, HashMap<String, Object>> prop = gson.fromJson(script, new TypeToken<HashMap<String, HashMap<String, Object>>>(){}.getType());
+            Map<String, Map<String, Object>> prop = LoaderConfig.parse(script);
             List<Object> re = new ArrayList<>();
-            for (Map.Entry<String, HashMap<String, Object>> entry : prop.entrySet()) {
-                String scriptName = entry.getKey();
-                DelegateScriptContext ctx = new DelegateScriptContext(ctx0, entry.getValue());
-
-                if (scriptName.charAt(0) == '#') {
-                    continue;
+            ConcurrentHashMap<String, DelegateScriptContext> contexts;
+            ConcurrentHashMap<String, Class<?>> classes;
+            synchronized (this) {
+                if (perScriptContext == null) {
+                    perScriptContext = new ConcurrentHashMap<>();
+                    perScriptClass = new ConcurrentHashMap<>();
                 }
+                contexts = perScriptContext;
+                classes = perScriptClass;
+            }
+            try {
+                for (Map.Entry<String, Map<String, Object>> entry : prop.entrySet()) {
+                    String scriptName = entry.getKey();
+                    DelegateScriptContext ctx = new DelegateScriptContext(ctx0, entry.getValue());
 
-                Class<?> klass = SharedScriptPool.INSTANCE.loadCache(scriptName);
-                if (klass != null) {
-                    re.add(delegateEval(klass, ctx, scriptName));
-                    perScriptContext.put(scriptName, ctx);
-                } else {
-                    throw new ScriptException(new ClassNotFoundException(scriptName));
+                    if (scriptName.charAt(0) == '#') {
+                        continue;
+                    }
+
+                    Class<?> klass = SharedScriptPool.INSTANCE.loadCache(scriptName, this);
+                    if (klass != null) {
+                        re.add(delegateEval(klass, ctx, scriptName));
+                        contexts.put(scriptName, ctx);
+                        classes.put(scriptName, klass);
+                    } else {
+                        throw new ScriptException(new ClassNotFoundException(scriptName));
+                    }
                 }
+            } finally {
+                dispatch = buildDispatch();
             }
             return re;
         }
 
+        @Override
+        public void reset() {
+            super.reset();
+            ConcurrentHashMap<String, Class<?>> classes;
+            synchronized (this) {
+                classes = perScriptClass;
+                perScriptContext = null;
+                perScriptClass = null;
+                dispatch = DispatchTable.EMPTY;
+            }
+            if (classes != null) {
+                for (String scriptName : classes.keySet()) SharedScriptPool.INSTANCE.release(scriptName, this);
+            }
+        }
+
         @Override
         protected String generateClosureName(String script, String method) {
             return script == null ? method : script + "#" + method;
@@ -124,36 +162,195 @@ public class GvyLoaderEngineFactory implements ScriptEngineFactory {
         protected Object delegateCallGlobal(String scriptName, String name, Object[] args, ScriptContext ctx) {
             if (scriptName != null) return super.delegateCallGlobal(scriptName, name, args, ctx);
 
-            List<Object> list = new ArrayList<>();
-            int count = 0;
-            for (Map.Entry<String, DelegateScriptContext> entry : perScriptContext.entrySet()) {
-                String sn = entry.getKey();
-                ScriptContext ctx1 = entry.getValue();
-                String fn = generateClosureName(sn, name);
+            DispatchTable table = dispatch;
+            Target[] targets = table.functions.get(name);
+            if (targets == null && table == DispatchTable.EMPTY) targets = DispatchTable.NONE;
+            if (targets == null) targets = table.functions.computeIfAbsent(name, n -> resolve(table.scripts, n));
+            if (targets.length == 0) {
+                throw new MissingMethodException(name, getClass(), args);
+            }
 
-                if (!scriptMethodExcludes.contains(fn)) {
+            Object[] results = new Object[targets.length];
+            if (Config.fanOutThreads > 0 && FanOut.applies(targets, args)) {
+                fanOut(targets, name, args, results);
+            } else {
+                for (int i = 0; i < targets.length; i++) {
+                    if (targets[i] != null) results[i] = callTarget(targets[i], name, args);
+                }
+            }
+            return Arrays.asList(results);
+        }
+
+        // the first target runs on the calling thread, results are joined in script order
+        private void fanOut(Target[] targets, String name, Object[] args, Object[] results) {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[targets.length];
+            // kept as thrown, join() would wrap exceptions of other threads in a copy
+            RuntimeException[] errors = new RuntimeException[targets.length];
+            int first = -1;
+            for (int i = 0; i < targets.length; i++) {
+                Target target = targets[i];
+                if (target == null) continue;
+                if (first < 0) {
+                    first = i;
+                    continue;
+                }
+                int index = i;
+                tasks[i] = FanOut.POOL.submit(() -> {
                     try {
-                        list.add(super.delegateCallGlobal(sn, name, args, ctx1));
-                        continue;
-                    } catch (MissingMethodException e) {
-                        if (e.getType() != getClass()) {
-                            throw new RuntimeException(new ScriptException("Error while executing script: " + sn).initCause(e));
-                        }
-                    } catch (Exception e) {
-                        Throwable tr = new ScriptException("Error while executing script: " + sn)
-                                .initCause(e);
-                        tr.setStackTrace(new StackTraceElement[0]);
-                        throw new RuntimeException(tr);
+                        results[index] = callTarget(target, name, args);
+                    } catch (RuntimeException e) {
+                        errors[index] = e;
                     }
-                    scriptMethodExcludes.add(fn);
+                });
+            }
+            try {
+                results[first] = callTarget(targets[first], name, args);
+            } catch (RuntimeException e) {
+                errors[first] = e;
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                if (task != null) task.join();
+            }
+            for (RuntimeException e : errors) {
+                if (e != null) throw e;
+            }
+        }
+
+        private Object callTarget(Target target, String name, Object[] args) {
+            ScriptBudget.Frame frame = ScriptBudget.enabled ? ScriptBudget.enter(target.ctx, target.script) : null;
+            if (frame == ScriptBudget.DEFERRED) return null;
+            long start = ScriptMetrics.start();
+            Object event = ScriptEvents.beginInvoke();
+            boolean failed = true;
+            try {
+                Object result = target.call(name, args);
+                failed = false;
+                return result;
+            } catch (MissingMethodException e) {
+                if (e.getType() != getClass()) {
+                    throw new RuntimeException(new ScriptException("Error while executing script: " + target.script).initCause(e));
+                }
+                failed = false;
+                return null;
+            } catch (Exception e) {
+                Throwable tr = new ScriptException("Error while executing script: " + target.script)
+                        .initCause(e);
+                tr.setStackTrace(new StackTraceElement[0]);
+                throw new RuntimeException(tr);
+            } finally {
+                if (start != 0L) ScriptMetrics.record(target.script, name, start, failed);
+                ScriptEvents.invoke(event, target.script, name, failed);
+                if (Config.asyncOutput) ScriptOutput.flushPending();
+                ScriptBudget.exit(frame);
+            }
+        }
+
+        @Override
+        protected boolean budgetsPerTarget() {
+            return true;
+        }
+
+        private DispatchTable buildDispatch() {
+            ConcurrentHashMap<String, DelegateScriptContext> contexts = perScriptContext;
+            ConcurrentHashMap<String, Class<?>> classes = perScriptClass;
+            if (contexts == null || classes == null) return DispatchTable.EMPTY;
+            String[] scripts = contexts.keySet().toArray(new String[0]);
+            Set<String> functions = new HashSet<>();
+            for (String sn : scripts) {
+                Class<?> klass = classes.get(sn);
+                if (klass == null) continue;
+                functions.addAll(ScriptFunction.declaredFunctions(klass).keySet());
+            }
+
+            DispatchTable table = new DispatchTable(scripts);
+            for (String fn : functions) table.functions.put(fn, resolve(scripts, fn));
+            return table;
+        }
+
+        private Target[] resolve(String[] scripts, String name) {
+            ConcurrentHashMap<String, DelegateScriptContext> contexts = perScriptContext;
+            if (contexts == null) return DispatchTable.NONE;
+            Target[] targets = new Target[scripts.length];
+            boolean found = false;
+            for (int i = 0; i < scripts.length; i++) {
+                String sn = scripts[i];
+                ScriptContext ctx = contexts.get(sn);
+                if (ctx == null) continue;
+                ScriptFunction function = globalFunction(sn, name);
+                if (function != null || ctx.getAttribute(name) instanceof Closure) {
+                    targets[i] = new Target(sn, function, ctx);
+                    found = true;
                 }
-                list.add(null);
+            }
+            return found ? targets : DispatchTable.NONE;
+        }
+    }
+
+    // bounded pool for @ThreadSafe functions, started on first use
+    private static final class FanOut {
+        static final ForkJoinPool POOL;
+        // immutable argument types which cannot reach world state
+        private static final Set<Class<?>> VALUES = new HashSet<>(Arrays.asList(
+                String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+                Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class));
+
+        static {
+            AtomicInteger id = new AtomicInteger();
+            POOL = new ForkJoinPool(Math.max(Config.fanOutThreads, 1), pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("Gropoalder-FanOut-" + id.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, null, false);
+        }
+
+        // at least two scripts, all of them with a thread safe function, and plain value arguments
+        static boolean applies(Target[] targets, Object[] args) {
+            int count = 0;
+            for (Target target : targets) {
+                if (target == null) continue;
+                if (target.function == null || !target.function.threadSafe()) return false;
                 count++;
             }
-            if (count == perScriptContext.size()) {
-                throw new MissingMethodException(name, getClass(), args);
+            if (count < 2) return false;
+            if (args != null) {
+                for (Object arg : args) {
+                    if (arg != null && !(arg instanceof Enum) && !VALUES.contains(arg.getClass())) return false;
+                }
             }
-            return list;
+            return true;
+        }
+    }
+
+    private static class DispatchTable {
+        static final Target[] NONE = new Target[0];
+        // table of an engine which has loaded nothing, never filled
+        static final DispatchTable EMPTY = new DispatchTable(new String[0]);
+
+        final String[] scripts;
+        final ConcurrentHashMap<String, Target[]> functions = new ConcurrentHashMap<>();
+
+        DispatchTable(String[] scripts) {
+            this.scripts = scripts;
+        }
+    }
+
+    private static class Target {
+        final String script;
+        final ScriptFunction function;
+        final ScriptContext ctx;
+
+        Target(String script, ScriptFunction function, ScriptContext ctx) {
+            this.script = script;
+            this.function = function;
+            this.ctx = ctx;
+        }
+
+        Object call(String name, Object[] args) {
+            if (function != null) return function.call(args);
+            // closure valued variable of the script context, looked up on every call
+            Object value = ctx.getAttribute(name);
+            return value instanceof Closure ? ((Closure<?>) value).call(args) : null;
         }
     }
 
@@ -164,10 +361,7 @@ public class GvyLoaderEngineFactory implements ScriptEngineFactory {
 
         private DelegateScriptContext(ScriptContext context, Map<String, Object> inserts) {
             this.context = context;
-
-            engineBindings = new SimpleBindings();
-            engineBindings.putAll(context.getBindings(ENGINE_SCOPE));
-            engineBindings.putAll(inserts);
+            this.engineBindings = new LayeredBindings(context.getBindings(ENGINE_SCOPE), inserts);
         }
 
         @Override
@@ -2,6 +2,7 @@ package com.github.mrmks.mc.gropoadler;
 
 import groovy.lang.GroovySystem;
 
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
@@ -12,6 +13,9 @@ import java.util.List;
 public class GvyPoolEngineFactory implements ScriptEngineFactory {
 
     public static final String CACHE_METHOD = "cacheScript";
+    // "name:ver:static" or [name, ver, "static"] from cacheScript compiles the pooled script with @CompileStatic
+    public static final String STATIC = "static";
+    private static final String STATIC_SUFFIX = ":" + STATIC;
 
     @Override
     public String getEngineName() {
@@ -91,26 +95,72 @@ public class GvyPoolEngineFactory implements ScriptEngineFactory {
 
     private class EngineImpl extends AbstractGroovyEngine {
 
+        // full name of the last script this engine registered to the pool
+        private volatile String pooledName;
+
         @Override
         public ScriptEngineFactory getFactory() {
             return GvyPoolEngineFactory.this;
         }
 
+        @Override
+        protected String scriptLabel(String scriptName, ScriptContext ctx) {
+            String pooled = pooledName;
+            return scriptName == null && pooled != null ? pooled : super.scriptLabel(scriptName, ctx);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            String pooled = pooledName;
+            pooledName = null;
+            if (pooled != null) SharedScriptPool.INSTANCE.release(pooled, this);
+        }
+
         @Override
         protected void postClass(String script, Class<?> klass) {
+            CacheSpec spec = CacheSpec.of(klass);
+            if (spec == null) return;
             try {
-                Method me = klass.getMethod(CACHE_METHOD);
-                checkRt(me.invoke(null), klass, script);
+                String full = SharedScriptPool.INSTANCE.register(klass, spec.name, spec.ver, script, spec.statik, this);
+                if (full != null) pooledName = full;
             } catch (IllegalStateException e) {
                 throw e;
             } catch (Exception e) {/* ignore*/}
         }
+    }
+
+    // what a script's cacheScript asks for: the name, version and compile mode it is pooled with
+    static final class CacheSpec {
+        final String name;
+        final int ver;
+        final boolean statik;
+
+        private CacheSpec(String name, int ver, boolean statik) {
+            this.name = name;
+            this.ver = ver;
+            this.statik = statik;
+        }
+
+        // null when the class has no cacheScript or it names nothing
+        static CacheSpec of(Class<?> klass) {
+            Object rt;
+            try {
+                Method me = klass.getMethod(CACHE_METHOD);
+                rt = me.invoke(null);
+            } catch (Exception e) {
+                return null;
+            }
 
-        private void checkRt(Object rt, Class<?> klass, String source) {
             String name = null;
             int ver = 0;
+            boolean statik = false;
             if (rt instanceof String) {
                 String tmp = (String) rt;
+                if (tmp.endsWith(STATIC_SUFFIX)) {
+                    statik = true;
+                    tmp = tmp.substring(0, tmp.length() - STATIC_SUFFIX.length());
+                }
 
                 int i = tmp.lastIndexOf(':');
 
@@ -132,12 +182,14 @@ public class GvyPoolEngineFactory implements ScriptEngineFactory {
                             ver = (int) t0;
                     }
                     else if (t0 instanceof Integer) ver = (int) t0;
+                    if (tmp.size() > 2) {
+                        Object t2 = tmp.get(2);
+                        statik = Boolean.TRUE.equals(t2) || STATIC.equals(t2);
+                    }
                 }
             }
 
-            if (name != null && !name.isEmpty() && klass != null) {
-                SharedScriptPool.INSTANCE.register(klass, name, Math.max(ver, 0), source);
-            }
+            return name != null && !name.isEmpty() ? new CacheSpec(name, Math.max(ver, 0), statik) : null;
         }
     }
 }
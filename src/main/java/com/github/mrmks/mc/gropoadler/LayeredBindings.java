@@ -0,0 +1,107 @@
+package com.github.mrmks.mc.gropoadler;
+
+import javax.script.Bindings;
+import java.util.*;
+
+/**
+ * Engine scope of a script loaded by a GvyLoader config: the script's own writes over
+ * the bindings its config gives it, over the live engine scope of the loading engine.
+ * Nothing is copied up front, the config bindings are shared and never written, and
+ * a write or remove only touches the script's own layer. The own layer is copied on write,
+ * so reads need no lock while the parent can be read concurrently.
+ */
+final class LayeredBindings extends AbstractMap<String, Object> implements Bindings {
+
+    private final Bindings parent;
+    private final Map<String, Object> overlay;
+    // created on the first write, removes of inherited keys are kept as tombstones,
+    // both are replaced instead of changed
+    private volatile Map<String, Object> writes;
+    private volatile Set<String> removed;
+
+    LayeredBindings(Bindings parent, Map<String, Object> overlay) {
+        this.parent = parent;
+        this.overlay = overlay;
+    }
+
+    boolean concurrent() {
+        return CopyOnWriteBindings.concurrent(parent);
+    }
+
+    @Override
+    public Object get(Object key) {
+        CopyOnWriteBindings.checkKey(key);
+        Map<String, Object> w = writes;
+        if (w != null) {
+            Object value = w.get(key);
+            if (value != null || w.containsKey(key)) return value;
+        }
+        Set<String> r = removed;
+        if (r != null && r.contains(key)) return null;
+        Object value = overlay.get(key);
+        if (value != null || overlay.containsKey(key)) return value;
+        return parent.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        CopyOnWriteBindings.checkKey(key);
+        Map<String, Object> w = writes;
+        if (w != null && w.containsKey(key)) return true;
+        Set<String> r = removed;
+        if (r != null && r.contains(key)) return false;
+        return overlay.containsKey(key) || parent.containsKey(key);
+    }
+
+    @Override
+    public synchronized Object put(String name, Object value) {
+        CopyOnWriteBindings.checkKey(name);
+        Object old = get(name);
+        Map<String, Object> w = writes == null ? new HashMap<>() : new HashMap<>(writes);
+        w.put(name, value);
+        writes = w;
+        if (removed != null && removed.contains(name)) {
+            Set<String> r = new HashSet<>(removed);
+            r.remove(name);
+            removed = r;
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        CopyOnWriteBindings.checkKey(key);
+        Object old = get(key);
+        if (writes != null && writes.containsKey(key)) {
+            Map<String, Object> w = new HashMap<>(writes);
+            w.remove(key);
+            writes = w;
+        }
+        if (overlay.containsKey(key) || parent.containsKey(key)) {
+            Set<String> r = removed == null ? new HashSet<>() : new HashSet<>(removed);
+            r.add((String) key);
+            removed = r;
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Set<String> r = new HashSet<>(overlay.keySet());
+        r.addAll(parent.keySet());
+        removed = r;
+        writes = null;
+    }
+
+    // a snapshot of the merged layers, changes go through put and remove
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> w = writes;
+        Set<String> r = removed;
+        Map<String, Object> merged = new LinkedHashMap<>(parent);
+        merged.putAll(overlay);
+        if (r != null) merged.keySet().removeAll(r);
+        if (w != null) merged.putAll(w);
+        return Collections.unmodifiableMap(merged).entrySet();
+    }
+}
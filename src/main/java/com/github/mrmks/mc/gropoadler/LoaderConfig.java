@@ -0,0 +1,151 @@
+package com.github.mrmks.mc.gropoadler;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.codehaus.groovy.util.ManagedConcurrentValueMap;
+import org.codehaus.groovy.util.ReferenceBundle;
+
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Parsed GvyLoader configs: script name to the bindings it is evaluated with.
+ * Configs are cached by a hash of their text, so NPCs sharing one are parsed once.
+ * Parsed configs are shared, every map and list in them is unmodifiable, and equal bindings
+ * of a script are one instance even across configs.
+ * Numbers keep the type they are written as: int, long or BigInteger without a fraction
+ * or exponent, double with one.
+ */
+final class LoaderConfig {
+
+    private static final ManagedConcurrentValueMap<String, Map<String, Map<String, Object>>> parsed = new ManagedConcurrentValueMap<>(ReferenceBundle.getSoftBundle());
+    // equal bindings of a script in different configs, keyed by a hash of their canonical JSON
+    private static final ManagedConcurrentValueMap<String, Map<String, Object>> overlays = new ManagedConcurrentValueMap<>(ReferenceBundle.getSoftBundle());
+
+    private LoaderConfig() {}
+
+    static Map<String, Map<String, Object>> parse(String text) throws ScriptException {
+        String hash = SourceStore.hash(text);
+        Map<String, Map<String, Object>> config = parsed.get(hash);
+        if (config == null) {
+            config = read(text);
+            parsed.put(hash, config);
+        }
+        return config;
+    }
+
+    private static Map<String, Map<String, Object>> read(String text) throws ScriptException {
+        // an empty config evaluates nothing, as it did with Gson
+        if (text.trim().isEmpty()) return Collections.emptyMap();
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            // as lenient as the Gson.fromJson this replaces
+            reader.setLenient(true);
+
+            Map<String, Map<String, Object>> config = new LinkedHashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    config.put(name, Collections.emptyMap());
+                } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    config.put(name, intern(object(reader)));
+                } else {
+                    throw new ScriptException("Bindings of script " + name + " are not an object, at " + reader.getPath());
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) throw new ScriptException("Unexpected content after the config, at " + reader.getPath());
+            return Collections.unmodifiableMap(config);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw (ScriptException) new ScriptException("Malformed loader config: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    private static Map<String, Object> intern(Map<String, Object> bindings) throws IOException {
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(json)) {
+            writer.setLenient(true);
+            write(writer, bindings);
+        }
+        String key = SourceStore.hash(json.toString());
+        Map<String, Object> shared = overlays.get(key);
+        if (shared != null) return shared;
+        overlays.put(key, bindings);
+        return bindings;
+    }
+
+    // the parsed types write back distinctly: 1 for an int, 1.0 for a double, "1" for a string
+    private static void write(JsonWriter writer, Object value) throws IOException {
+        if (value instanceof Map<?, ?>) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                writer.name((String) e.getKey());
+                write(writer, e.getValue());
+            }
+            writer.endObject();
+        } else if (value instanceof List<?>) {
+            writer.beginArray();
+            for (Object o : (List<?>) value) write(writer, o);
+            writer.endArray();
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value((boolean) (Boolean) value);
+        } else if (value == null) {
+            writer.nullValue();
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    private static Map<String, Object> object(JsonReader reader) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            map.put(name, value(reader));
+        }
+        reader.endObject();
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static Object value(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return object(reader);
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) list.add(value(reader));
+                reader.endArray();
+                return Collections.unmodifiableList(list);
+            case NUMBER:
+                return number(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static Number number(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            // a fraction, an exponent or NaN and Infinity, which lenient readers accept
+            if ((c < '0' || c > '9') && c != '-') return Double.parseDouble(literal);
+        }
+        BigInteger value = new BigInteger(literal);
+        if (value.bitLength() < 32) return value.intValue();
+        if (value.bitLength() < 64) return value.longValue();
+        return value;
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Script storage in two append-only files, which several processes may use at once.
+ * scripts.dat holds the UTF-8 texts and scripts.idx one checksummed record per put
+ * naming the offset and length of its text, the last record of a name wins.
+ * Readers map the data file and decode texts straight from the mapping, writers
+ * append under an exclusive lock on the index file.
+ */
+final class MappedDataStorage implements SharedScriptPool.DataStorage {
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // end of the last complete index record, written under this
+    private volatile long indexRead;
+    private volatile MappedByteBuffer mapped;
+
+    MappedDataStorage(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        data = FileChannel.open(new File(dir, "scripts.dat").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(new File(dir, "scripts.idx").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        refresh();
+    }
+
+    @Override
+    public void put(String name, String text, int ver) {
+        put(name, text, ver, false);
+    }
+
+    @Override
+    public void put(String name, String text, int ver, boolean statik) {
+        String hash = SourceStore.hash(text);
+        // most puts store what is stored already, those take no lock
+        refreshQuietly();
+        if (unchanged(name, ver, hash, statik)) return;
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        // FileLock is held per process, other threads of this one wait on the monitor
+        synchronized (this) {
+            try (FileLock ignored = index.lock()) {
+                refresh();
+                if (unchanged(name, ver, hash, statik)) return;
+                // drop what a crashed writer left behind, readers stop at it anyway
+                if (index.size() > indexRead) index.truncate(indexRead);
+
+                long offset = data.size();
+                writeFully(data, ByteBuffer.wrap(bytes), offset);
+                // the text is durable before a record names it. The record is not forced: a lost one
+                // only loses this put, and a torn one fails its checksum
+                data.force(false);
+                writeFully(index, ByteBuffer.wrap(record(name, ver, offset, bytes.length, hash, statik)), indexRead);
+                refresh();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to store script " + name, e);
+            }
+        }
+    }
+
+    private boolean unchanged(String name, int ver, String hash, boolean statik) {
+        Entry cur = entries.get(name);
+        return cur != null && cur.ver == ver && cur.statik == statik && cur.hash.equals(hash);
+    }
+
+    @Override
+    public SharedScriptPool.VersionSource get(String name) {
+        refreshQuietly();
+        return entries.get(name);
+    }
+
+    @Override
+    public Collection<String> names() {
+        refreshQuietly();
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    // copies every script which is missing here or older, returns the number copied
+    int importFrom(SharedScriptPool.DataStorage from) {
+        int count = 0;
+        for (String name : from.names()) {
+            SharedScriptPool.VersionSource vs = from.get(name), cur = get(name);
+            if (vs != null && (cur == null || cur.version() < vs.version())) {
+                put(name, vs.text(), vs.version(), vs.isStatic());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void refreshQuietly() {
+        try {
+            if (index.size() != indexRead) refresh();
+        } catch (IOException e) {
+            SharedScriptPool.INSTANCE.logger().warn("Unable to read the script index", e);
+        }
+    }
+
+    // reads the records other writers appended since the last call
+    private synchronized void refresh() throws IOException {
+        long size = index.size();
+        if (size <= indexRead) return;
+        ByteBuffer buf = ByteBuffer.allocate((int) (size - indexRead));
+        readFully(index, buf, indexRead);
+        buf.flip();
+
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= 4) {
+            int len = buf.getInt();
+            if (len <= 0 || buf.remaining() < len + 4) break;
+            byte[] payload = new byte[len];
+            buf.get(payload);
+            crc.reset();
+            crc.update(payload, 0, len);
+            if ((int) crc.getValue() != buf.getInt()) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String name = in.readUTF();
+            int ver = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            String hash = in.readUTF();
+            boolean statik = in.readBoolean();
+            entries.put(name, new Entry(ver, offset, length, hash, statik));
+            indexRead += 4 + len + 4;
+        }
+    }
+
+    private static byte[] record(String name, int ver, long offset, int length, String hash, boolean statik) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(name);
+        out.writeInt(ver);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.writeUTF(hash);
+        out.writeBoolean(statik);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteBuffer buf = ByteBuffer.allocate(4 + payload.size() + 4);
+        buf.putInt(payload.size()).put(payload.toByteArray()).putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+        MappedByteBuffer m = mapped;
+        if (m == null || offset + length > m.capacity()) m = remap(offset + length);
+        ByteBuffer dup = m.duplicate();
+        dup.position((int) offset);
+        dup.limit((int) offset + length);
+        return dup.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long required) {
+        MappedByteBuffer m = mapped;
+        if (m != null && required <= m.capacity()) return m;
+        try {
+            long size = data.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Script data file exceeds 2GB");
+            return mapped = data.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map the script data file", e);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new EOFException();
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) pos += ch.write(buf, pos);
+    }
+
+    private final class Entry implements SharedScriptPool.VersionSource {
+        final int ver;
+        final long offset;
+        final int length;
+        final String hash;
+        final boolean statik;
+
+        Entry(int ver, long offset, int length, String hash, boolean statik) {
+            this.ver = ver;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+            this.statik = statik;
+        }
+
+        @Override
+        public String text() {
+            return StandardCharsets.UTF_8.decode(slice(offset, length)).toString();
+        }
+
+        @Override
+        public String hash() {
+            return hash;
+        }
+
+        @Override
+        public int version() {
+            return ver;
+        }
+
+        @Override
+        public boolean isStatic() {
+            return statik;
+        }
+    }
+}
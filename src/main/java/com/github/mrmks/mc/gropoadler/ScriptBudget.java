@@ -0,0 +1,101 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-call and per-tick time budgets of scripts.
+ * Scripts compiled in budget mode poll {@link #check()} on method entry and in loops,
+ * and abort with a {@link ScriptBudgetException} once the deadline of the outermost running call passed.
+ * The tick budget is kept per owner, the script object or engine a call runs on, so scripts
+ * which only share a name do not share a budget. An owner which used up its tick budget
+ * is deferred: its calls are skipped until the next tick.
+ */
+public final class ScriptBudget {
+
+    static volatile boolean enabled;
+    static long perCallNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    static long perTickNanos = TimeUnit.MILLISECONDS.toNanos(20);
+
+    // returned by enter when the script has no budget left this tick
+    static final Frame DEFERRED = new Frame(null, null, null, 0L, 0L);
+
+    private static final ThreadLocal<Frame> current = new ThreadLocal<>();
+    // owners are compared by identity, the map is cleared every tick
+    private static final Map<Object, AtomicLong> tickUsage = Collections.synchronizedMap(new IdentityHashMap<>());
+    private static final Set<Object> reported = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private ScriptBudget() {}
+
+    // called by the injected interrupt checks, throws once the running call is past its deadline
+    public static boolean check() {
+        Frame f = current.get();
+        if (f != null && System.nanoTime() - f.deadline > 0) {
+            throw new ScriptBudgetException("Script " + f.script + " ran over its budget of "
+                    + TimeUnit.NANOSECONDS.toMillis(f.deadline - f.start) + "ms");
+        }
+        return false;
+    }
+
+    // owner is what the tick budget is kept for, script the name it is reported under
+    static Frame enter(Object owner, String script) {
+        Frame outer = current.get();
+        if (outer != null) return null; // nested calls run under the outermost budget
+
+        AtomicLong used = tickUsage.computeIfAbsent(owner, k -> new AtomicLong());
+        long remaining = perTickNanos - used.get();
+        if (remaining <= 0) {
+            report(owner, script, "deferred, its tick budget of " + TimeUnit.NANOSECONDS.toMillis(perTickNanos) + "ms is used up");
+            return DEFERRED;
+        }
+
+        long now = System.nanoTime();
+        Frame frame = new Frame(owner, script, used, now, now + Math.min(perCallNanos, remaining));
+        current.set(frame);
+        return frame;
+    }
+
+    static void exit(Frame frame) {
+        if (frame == null || frame == DEFERRED) return;
+        current.remove();
+
+        long now = System.nanoTime();
+        // the counter taken at enter, the map may have been cleared by a new tick since
+        frame.used.addAndGet(now - frame.start);
+        if (now - frame.deadline > 0) {
+            report(frame.owner, frame.script, "took " + TimeUnit.NANOSECONDS.toMillis(now - frame.start) + "ms, over its budget");
+        }
+    }
+
+    static void newTick() {
+        tickUsage.clear();
+        reported.clear();
+    }
+
+    // once per owner and tick
+    private static void report(Object owner, String script, String message) {
+        if (reported.add(owner)) {
+            SharedScriptPool.INSTANCE.logger().warn("Script " + script + " " + message);
+        }
+    }
+
+    static final class Frame {
+        final Object owner;
+        final String script;
+        final AtomicLong used;
+        final long start;
+        final long deadline;
+
+        Frame(Object owner, String script, AtomicLong used, long start, long deadline) {
+            this.owner = owner;
+            this.script = script;
+            this.used = used;
+            this.start = start;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.mrmks.mc.gropoadler;
+
+/**
+ * Thrown from inside a script compiled in budget mode once the running call is over its time budget.
+ */
+public class ScriptBudgetException extends RuntimeException {
+    public ScriptBudgetException(String message) {
+        super(message);
+    }
+}
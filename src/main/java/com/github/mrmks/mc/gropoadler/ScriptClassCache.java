@@ -0,0 +1,177 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.util.ManagedConcurrentValueMap;
+import org.codehaus.groovy.util.ReferenceBundle;
+
+import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Classes of evaluated scripts, shared by every engine of both factories.
+ * Keyed by a hash of the source and the compiler settings, so engines evaluating the same
+ * text share one class and nothing keeps the text as a key. A script is compiled once
+ * however many engines ask for it at the same time.
+ * Once a script of an engine declared classes, the later scripts of that engine are compiled
+ * against them and cached in its {@link EngineClasses} instead, as they may depend on them.
+ */
+final class ScriptClassCache {
+
+    // key -> class, softly held like the per engine map this replaces
+    private static final ManagedConcurrentValueMap<String, Class<?>> classes = new ManagedConcurrentValueMap<>(ReferenceBundle.getSoftBundle());
+    private static final ConcurrentHashMap<String, CompletableFuture<Class<?>>> compiling = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder(), misses = new LongAdder(), joins = new LongAdder();
+
+    private ScriptClassCache() {}
+
+    static Class<?> get(String script, EngineClasses engine, Supplier<String> label, Supplier<String> fileName) throws CompilationFailedException {
+        try {
+            return lookup(script, engine, label, fileName, null).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof CompilationFailedException) throw (CompilationFailedException) e.getCause();
+            throw e;
+        }
+    }
+
+    // compiles on the executor when missing, or on the calling thread without one.
+    // label names the script in compile events, joining a running compile counts as a hit
+    static CompletableFuture<Class<?>> lookup(String script, EngineClasses engine, Supplier<String> label, Supplier<String> fileName, Executor executor) {
+        Object event = ScriptEvents.beginCompile();
+        String key = BytecodeStore.key(SourceStore.hash(script), Compiler.FINGERPRINT);
+        boolean local = engine != null;
+        ManagedConcurrentValueMap<String, Class<?>> classes = local ? engine.classes : ScriptClassCache.classes;
+        ConcurrentHashMap<String, CompletableFuture<Class<?>>> compiling = local ? engine.compiling : ScriptClassCache.compiling;
+        GroovyClassLoader loader = local ? engine.loader : Compiler.LOADER;
+        Class<?> clazz = classes.get(key);
+        if (clazz != null) {
+            hits.increment();
+            if (event != null) ScriptEvents.compile(event, label.get(), -1, script.length(), true);
+            return CompletableFuture.completedFuture(clazz);
+        }
+
+        CompletableFuture<Class<?>> future = new CompletableFuture<>();
+        CompletableFuture<Class<?>> prev = compiling.putIfAbsent(key, future);
+        if (prev != null) {
+            joins.increment();
+            if (event != null) ScriptEvents.compile(event, label.get(), -1, script.length(), true);
+            return prev;
+        }
+        // a compile may have finished between the lookup and the claim
+        clazz = classes.get(key);
+        if (clazz != null) {
+            compiling.remove(key, future);
+            hits.increment();
+            if (event != null) ScriptEvents.compile(event, label.get(), -1, script.length(), true);
+            future.complete(clazz);
+            return future;
+        }
+
+        misses.increment();
+        String name = fileName.get();
+        String labelName = event == null ? null : label.get();
+        Runnable task = () -> {
+            try {
+                Class<?> c = CompiledScript.compile(script, name, Compiler.CONFIG, loader).define(loader);
+                classes.put(key, c);
+                ScriptEvents.compile(event, labelName, -1, script.length(), false);
+                future.complete(c);
+            } catch (Throwable tr) {
+                future.completeExceptionally(tr);
+            } finally {
+                compiling.remove(key, future);
+            }
+        };
+        if (executor == null) {
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                compiling.remove(key, future);
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    static String report() {
+        return "hits=" + hits.sum() + " misses=" + misses.sum() + " joined=" + joins.sum();
+    }
+
+    // the classes declared by the source of an evaluated script class
+    static List<Class<?>> declared(Class<?> main) {
+        try {
+            return CompiledScript.declaredClasses(main);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Compiled script is missing a declared class", e);
+        }
+    }
+
+    /**
+     * The classes declared by the scripts one engine evaluated, resolved by name by its later scripts.
+     * Created by the engine once one of its scripts declares classes.
+     */
+    static final class EngineClasses {
+        private final Local loader = Local.create();
+        private final ManagedConcurrentValueMap<String, Class<?>> classes = new ManagedConcurrentValueMap<>(ReferenceBundle.getSoftBundle());
+        private final ConcurrentHashMap<String, CompletableFuture<Class<?>>> compiling = new ConcurrentHashMap<>();
+
+        void add(List<Class<?>> declared) {
+            for (Class<?> c : declared) loader.add(c);
+        }
+    }
+
+    // the loader of an engine, its cache entries are the declared classes
+    private static final class Local extends GroovyClassLoader {
+        private Local() {
+            super(Compiler.LOADER, Compiler.CONFIG);
+        }
+
+        @SuppressWarnings("removal")
+        static Local create() {
+            return java.security.AccessController.doPrivileged((PrivilegedAction<Local>) Local::new);
+        }
+
+        void add(Class<?> c) {
+            setClassCacheEntry(c);
+        }
+    }
+
+    // created on first use, after the config is loaded
+    private static final class Compiler {
+        static final CompilerConfiguration CONFIG = CompilerSettings.configuration();
+        static final String FINGERPRINT = CompilerSettings.fingerprint(CONFIG);
+        static final GroovyClassLoader LOADER = createLoader();
+
+        @SuppressWarnings("removal")
+        private static GroovyClassLoader createLoader() {
+            return java.security.AccessController.doPrivileged((PrivilegedAction<GroovyClassLoader>) () -> new GroovyClassLoader(getParentLoader(), CONFIG));
+        }
+
+        // determine appropriate class loader to serve as parent loader
+        // for GroovyClassLoader instance
+        private static ClassLoader getParentLoader() {
+            // check whether thread context loader can "see" Groovy Script class
+            ClassLoader ctxtLoader = Thread.currentThread().getContextClassLoader();
+            try {
+                Class<?> c = ctxtLoader.loadClass(Script.class.getName());
+                if (c == Script.class) {
+                    return ctxtLoader;
+                }
+            } catch (ClassNotFoundException cnfe) {
+                /* ignore */
+            }
+            // exception was thrown or we get wrong class
+            return Script.class.getClassLoader();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.mrmks.mc.gropoadler;
+
+/**
+ * Flight Recorder events for script compiles, evals and calls, named after the pooled script
+ * and its version rather than the generated class. Every begin returns null unless the JVM
+ * has JFR and a recording has the event enabled, checked on the event type before an event
+ * is allocated, so the callers only pay a null check.
+ * The events live in the jfr source set, which is compiled against a JDK that has jdk.jfr,
+ * and are loaded by name, so this class links on JVMs without JFR.
+ */
+final class ScriptEvents {
+
+    // null without JFR or with the events turned off
+    private static final Sink SINK = Config.jfrEvents ? load() : null;
+
+    private ScriptEvents() {}
+
+    private static Sink load() {
+        try {
+            return (Sink) Class.forName("com.github.mrmks.mc.gropoadler.JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    static Object beginCompile() {
+        return SINK != null ? SINK.beginCompile() : null;
+    }
+
+    static Object beginEval() {
+        return SINK != null ? SINK.beginEval() : null;
+    }
+
+    static Object beginInvoke() {
+        return SINK != null ? SINK.beginInvoke() : null;
+    }
+
+    // version -1 looks the script up in the pool, sourceLength is -1 when the source was not read
+    static void compile(Object event, String script, int version, int sourceLength, boolean cacheHit) {
+        if (event != null) SINK.compile(event, script, version, sourceLength, cacheHit);
+    }
+
+    static void eval(Object event, String script, boolean failed) {
+        if (event != null) SINK.eval(event, script, failed);
+    }
+
+    static void invoke(Object event, String script, String function, boolean failed) {
+        if (event != null) SINK.invoke(event, script, function, failed);
+    }
+
+    // implemented by JfrEvents, events are only passed back to the sink which began them
+    interface Sink {
+        Object beginCompile();
+
+        Object beginEval();
+
+        Object beginInvoke();
+
+        void compile(Object event, String script, int version, int sourceLength, boolean cacheHit);
+
+        void eval(Object event, String script, boolean failed);
+
+        void invoke(Object event, String script, String function, boolean failed);
+    }
+}
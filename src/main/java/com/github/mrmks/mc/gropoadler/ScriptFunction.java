@@ -0,0 +1,127 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.MetaClassHelper;
+import org.codehaus.groovy.runtime.MethodClosure;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A function declared by a script, bound to one script object.
+ * Calls go straight to a cached {@link MethodHandle} chosen by arity, the {@link MethodClosure}
+ * is only used when that is not possible: overloads of the same arity, varargs, or arguments
+ * which need Groovy coercion.
+ */
+final class ScriptFunction {
+
+    private final MethodHandle[] byArity;
+    // parameter types with primitives boxed, and which of them are primitives
+    private final Class<?>[][] paramsByArity;
+    private final boolean[][] primitivesByArity;
+    private final MethodClosure fallback;
+    // every method of this name is annotated @ThreadSafe
+    private final boolean threadSafe;
+
+    private ScriptFunction(MethodHandle[] byArity, Class<?>[][] paramsByArity, boolean[][] primitivesByArity, MethodClosure fallback, boolean threadSafe) {
+        this.byArity = byArity;
+        this.paramsByArity = paramsByArity;
+        this.primitivesByArity = primitivesByArity;
+        this.fallback = fallback;
+        this.threadSafe = threadSafe;
+    }
+
+    // the public, non-synthetic methods declared by the script class, grouped by name
+    static Map<String, List<Method>> declaredFunctions(Class<?> scriptClass) {
+        Map<String, List<Method>> map = new LinkedHashMap<>();
+        for (Method m : scriptClass.getDeclaredMethods()) {
+            if (!Modifier.isPublic(m.getModifiers()) || m.isSynthetic() || m.isBridge()) continue;
+            map.computeIfAbsent(m.getName(), k -> new ArrayList<>(1)).add(m);
+        }
+        return map;
+    }
+
+    static ScriptFunction bind(Script scriptObject, String name, List<Method> methods) {
+        int max = 0;
+        for (Method m : methods) max = Math.max(max, m.getParameterCount());
+
+        MethodHandle[] handles = new MethodHandle[max + 1];
+        Class<?>[][] params = new Class<?>[max + 1][];
+        boolean[][] primitives = new boolean[max + 1][];
+        boolean[] ambiguous = new boolean[max + 1];
+        boolean threadSafe = true;
+        for (Method m : methods) {
+            threadSafe &= m.isAnnotationPresent(ThreadSafe.class);
+            int n = m.getParameterCount();
+            if (params[n] != null || m.isVarArgs()) {
+                ambiguous[n] = true;
+                continue;
+            }
+            try {
+                MethodHandle mh = MethodHandles.publicLookup().unreflect(m);
+                if (!Modifier.isStatic(m.getModifiers())) mh = mh.bindTo(scriptObject);
+                handles[n] = mh.asType(MethodType.genericMethodType(n)).asSpreader(Object[].class, n);
+                params[n] = MethodType.methodType(void.class, m.getParameterTypes()).wrap().parameterArray();
+                primitives[n] = primitiveFlags(m.getParameterTypes());
+            } catch (IllegalAccessException e) {
+                ambiguous[n] = true;
+            }
+        }
+        for (int i = 0; i <= max; i++) {
+            if (ambiguous[i]) {
+                handles[i] = null;
+                params[i] = null;
+                primitives[i] = null;
+            }
+        }
+        return new ScriptFunction(handles, params, primitives, new MethodClosure(scriptObject, name), threadSafe);
+    }
+
+    boolean threadSafe() {
+        return threadSafe;
+    }
+
+    Object call(Object[] args) {
+        if (args == null) args = MetaClassHelper.EMPTY_ARRAY;
+        int n = args.length;
+        if (n < byArity.length && byArity[n] != null && accepts(paramsByArity[n], primitivesByArity[n], args)) {
+            try {
+                return (Object) byArity[n].invokeExact(args);
+            } catch (Throwable tr) {
+                // rethrow as is, like a call through the metaclass would
+                throw ScriptFunction.<RuntimeException>sneakyThrow(tr);
+            }
+        }
+        return fallback.call(args);
+    }
+
+    private static boolean accepts(Class<?>[] params, boolean[] primitives, Object[] args) {
+        for (int i = 0; i < params.length; i++) {
+            Object a = args[i];
+            if (a == null) {
+                if (primitives[i]) return false;
+            } else if (primitives[i] ? a.getClass() != params[i] : !params[i].isInstance(a)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T sneakyThrow(Throwable tr) throws T {
+        throw (T) tr;
+    }
+
+    private static boolean[] primitiveFlags(Class<?>[] types) {
+        boolean[] flags = new boolean[types.length];
+        for (int i = 0; i < types.length; i++) flags[i] = types[i].isPrimitive();
+        return flags;
+    }
+}
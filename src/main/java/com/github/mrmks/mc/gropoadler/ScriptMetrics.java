@@ -0,0 +1,132 @@
+package com.github.mrmks.mc.gropoadler;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts, error counts and latency histograms per script and function.
+ * Callers take {@link #start()} before the call and pass it to {@link #record};
+ * when disabled start returns 0 and nothing else is done.
+ */
+public enum ScriptMetrics implements ScriptMetricsMBean {
+    INSTANCE;
+
+    public static final String OBJECT_NAME = "com.github.mrmks.mc.gropoadler:type=ScriptMetrics";
+
+    private static volatile boolean enabled;
+    // script -> function -> stat
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Stat>> stats = new ConcurrentHashMap<>();
+
+    static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    static void record(String script, String function, long start, boolean failed) {
+        if (start == 0L) return;
+        long nanos = System.nanoTime() - start;
+        stats.computeIfAbsent(script, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(function, k -> new Stat())
+                .record(nanos, failed);
+    }
+
+    static void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) server.registerMBean(INSTANCE, name);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        ScriptMetrics.enabled = enabled;
+    }
+
+    @Override
+    public String[] getReport() {
+        List<String> lines = report(Integer.MAX_VALUE);
+        return lines.toArray(new String[0]);
+    }
+
+    List<String> report(int limit) {
+        List<Map.Entry<String, Stat>> all = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Stat>> script : stats.entrySet()) {
+            for (Map.Entry<String, Stat> fn : script.getValue().entrySet()) {
+                all.add(new AbstractMap.SimpleImmutableEntry<>(script.getKey() + "#" + fn.getKey(), fn.getValue()));
+            }
+        }
+        all.sort((a, b) -> Long.compare(b.getValue().total.sum(), a.getValue().total.sum()));
+
+        List<String> lines = new ArrayList<>(Math.min(limit, all.size()));
+        for (Map.Entry<String, Stat> entry : all) {
+            if (lines.size() >= limit) break;
+            Stat st = entry.getValue();
+            lines.add(entry.getKey()
+                    + " calls=" + st.calls.sum()
+                    + " errors=" + st.errors.sum()
+                    + " total=" + formatNanos(st.total.sum())
+                    + " p50=" + formatNanos(st.percentile(0.50))
+                    + " p99=" + formatNanos(st.percentile(0.99))
+                    + " max=" + formatNanos(st.max.get()));
+        }
+        return lines;
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000L) return nanos + "ns";
+        if (nanos < 10_000_000L) return (nanos / 1_000L) + "us";
+        return (nanos / 1_000_000L) + "ms";
+    }
+
+    private static final class Stat {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+        // bucket i counts calls which took less than 2^i nanoseconds
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos, boolean failed) {
+            calls.increment();
+            if (failed) errors.increment();
+            total.add(nanos);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0L)) & 63);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // retry
+            }
+        }
+
+        // upper bound of the bucket holding the given quantile
+        long percentile(double q) {
+            long count = 0;
+            for (int i = 0; i < 64; i++) count += buckets.get(i);
+            if (count == 0) return 0;
+
+            long rank = (long) Math.ceil(count * q), seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(1L << i, max.get());
+            }
+            return max.get();
+        }
+    }
+}
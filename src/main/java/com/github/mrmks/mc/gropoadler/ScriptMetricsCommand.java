@@ -0,0 +1,60 @@
+package com.github.mrmks.mc.gropoadler;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ScriptMetricsCommand extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "gvymetrics";
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/gvymetrics [top [count]|on|off|reset|classes]";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        String sub = args.length > 0 ? args[0] : "top";
+        switch (sub) {
+            case "on":
+            case "off":
+                ScriptMetrics.INSTANCE.setEnabled("on".equals(sub));
+                sender.sendMessage(new TextComponentString("Script metrics " + (ScriptMetrics.INSTANCE.isEnabled() ? "enabled" : "disabled")));
+                break;
+            case "reset":
+                ScriptMetrics.INSTANCE.reset();
+                sender.sendMessage(new TextComponentString("Script metrics reset"));
+                break;
+            case "top":
+                int limit = args.length > 1 ? parseInt(args[1], 1) : 10;
+                List<String> lines = ScriptMetrics.INSTANCE.report(limit);
+                if (lines.isEmpty()) {
+                    sender.sendMessage(new TextComponentString(ScriptMetrics.INSTANCE.isEnabled() ? "No script calls recorded" : "Script metrics are disabled"));
+                }
+                for (String line : lines) sender.sendMessage(new TextComponentString(line));
+                break;
+            case "classes":
+                sender.sendMessage(new TextComponentString("Pooled script classes: " + SharedScriptPool.INSTANCE.classReport()));
+                sender.sendMessage(new TextComponentString("Engine script classes: " + ScriptClassCache.report()));
+                break;
+            default:
+                throw new WrongUsageException(getUsage(sender));
+        }
+    }
+
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, BlockPos targetPos) {
+        return args.length == 1 ? getListOfStringsMatchingLastWord(args, "top", "on", "off", "reset", "classes") : Collections.emptyList();
+    }
+}
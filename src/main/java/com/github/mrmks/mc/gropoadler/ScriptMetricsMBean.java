@@ -0,0 +1,11 @@
+package com.github.mrmks.mc.gropoadler;
+
+public interface ScriptMetricsMBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+
+    // one line per script function, most expensive first
+    String[] getReport();
+
+    void reset();
+}
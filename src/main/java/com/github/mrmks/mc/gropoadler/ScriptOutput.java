@@ -0,0 +1,223 @@
+package com.github.mrmks.mc.gropoadler;
+
+import javax.script.ScriptContext;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Script output written by a background thread instead of the thread running the script.
+ * Each script context buffers its `out` in one {@link #printer} which hands every flushed
+ * chunk to a bounded queue. Buffers are flushed on each line and at the end of every eval
+ * and call, see {@link #flushPending()}. When the queue is full chunks are dropped or the
+ * script waits, and output beyond the per script line rate is suppressed and counted.
+ */
+final class ScriptOutput {
+
+    // set before first use, loading this class starts the writer thread
+    static volatile int capacity = 4096;
+    static volatile boolean block = false;
+    static volatile int linesPerSecond = 0;
+
+    private static final int BUFFER = 8192;
+
+    private static final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+    private static final Thread drainer;
+    // the printer of each context, dropped with the context
+    private static final Map<ScriptContext, Printer> printers = new WeakHashMap<>();
+    // buffers this thread wrote to since its last flushPending
+    private static final ThreadLocal<List<Buffer>> written = ThreadLocal.withInitial(ArrayList::new);
+
+    static {
+        drainer = new Thread(ScriptOutput::drain, "Gropoalder-Output");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private ScriptOutput() {}
+
+    // the buffered printer of the context in front of its writer target, for the script reported as label
+    static PrintWriter printer(ScriptContext ctx, Writer target, String label) {
+        synchronized (printers) {
+            Printer p = printers.get(ctx);
+            if (p == null || p.target != target) {
+                p = new Printer(target, linesPerSecond > 0 ? limiters.computeIfAbsent(label, Limiter::new) : null);
+                printers.put(ctx, p);
+            }
+            return p;
+        }
+    }
+
+    // hands what this thread printed without a line end to the queue, at the end of an eval or call
+    static void flushPending() {
+        List<Buffer> buffers = written.get();
+        if (buffers.isEmpty()) return;
+        for (Buffer b : buffers) b.flush();
+        buffers.clear();
+    }
+
+    // waits up to the given time for the queued output to be written
+    static void flush(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (size.get() > 0 && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void submit(Writer target, String text, Limiter limiter) {
+        if (limiter != null && (text = limiter.admit(text)) == null) return;
+        while (size.get() >= capacity) {
+            if (!block) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        queue.add(new Chunk(target, text));
+        if (size.getAndIncrement() == 0) LockSupport.unpark(drainer);
+    }
+
+    private static void drain() {
+        Set<Writer> written = Collections.newSetFromMap(new IdentityHashMap<>());
+        long reported = 0;
+        while (true) {
+            Chunk chunk = queue.poll();
+            if (chunk == null) {
+                for (Writer w : written) {
+                    try {
+                        w.flush();
+                    } catch (IOException e) {/* ignore */}
+                }
+                written.clear();
+                long d = dropped.get();
+                if (d != reported) {
+                    SharedScriptPool.INSTANCE.logger().warn("Script output queue full, dropped " + (d - reported) + " chunks");
+                    reported = d;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            size.decrementAndGet();
+            try {
+                chunk.target.write(chunk.text);
+                written.add(chunk.target);
+            } catch (IOException e) {/* a closed console, nothing to tell */}
+        }
+    }
+
+    private static final class Chunk {
+        final Writer target;
+        final String text;
+
+        Chunk(Writer target, String text) {
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    // lines a script may print per second, counted in whole second windows
+    private static final class Limiter {
+        final String label;
+        final AtomicLong window = new AtomicLong();
+        final AtomicInteger lines = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        Limiter(String label) {
+            this.label = label;
+        }
+
+        // the text to print, with a note about what the last window suppressed, or null
+        String admit(String text) {
+            long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            long w = window.get();
+            if (w != now && window.compareAndSet(w, now)) lines.set(0);
+
+            int n = 0;
+            for (int i = 0; i < text.length(); i++) if (text.charAt(i) == '\n') n++;
+            if (lines.addAndGet(Math.max(n, 1)) > linesPerSecond) {
+                suppressed.addAndGet(Math.max(n, 1));
+                return null;
+            }
+            int s = suppressed.getAndSet(0);
+            return s == 0 ? text : "[" + s + " lines of " + label + " suppressed]" + System.lineSeparator() + text;
+        }
+    }
+
+    private static final class Printer extends PrintWriter {
+        final Writer target;
+
+        Printer(Writer target, Limiter limiter) {
+            super(new Buffer(target, limiter), true);
+            this.target = target;
+        }
+    }
+
+    // collects writes until a flush or a full buffer, the PrintWriter on top flushes on each println
+    private static final class Buffer extends Writer {
+        private final Writer target;
+        private final Limiter limiter;
+        private final StringBuilder sb = new StringBuilder();
+
+        Buffer(Writer target, Limiter limiter) {
+            this.target = target;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            synchronized (lock) {
+                boolean first = sb.length() == 0;
+                sb.append(cbuf, off, len);
+                written(first);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            synchronized (lock) {
+                boolean first = sb.length() == 0;
+                sb.append(str, off, off + len);
+                written(first);
+            }
+        }
+
+        // the thread which started the buffered text flushes it at the latest when its eval or call ends
+        private void written(boolean first) {
+            if (sb.length() >= BUFFER) flush();
+            else if (first && sb.length() > 0) ScriptOutput.written.get().add(this);
+        }
+
+        @Override
+        public void flush() {
+            synchronized (lock) {
+                if (sb.length() == 0) return;
+                String text = sb.toString();
+                sb.setLength(0);
+                submit(target, text, limiter);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
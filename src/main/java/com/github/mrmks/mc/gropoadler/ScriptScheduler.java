@@ -0,0 +1,222 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.Closure;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code scheduler} every script finds in its binding.
+ * {@code scheduler.async({ work }, { result -> ... })} runs the work on a bounded worker pool
+ * and the callback on the server thread at the end of a later tick, an optional third closure
+ * gets the exception instead. {@code scheduler.later(ticks, { ... })} runs a closure on the
+ * server thread after that many ticks. Both return a {@link Task} which can be cancelled.
+ * Only the engine holds its tasks, the queues keep weak references, so the callbacks of an
+ * engine which was dropped are collected with it and never run.
+ */
+public final class ScriptScheduler {
+
+    // completed async work and due delayed tasks, run by tick() on the server thread
+    private static final Queue<Ref> ready = new ConcurrentLinkedQueue<>();
+    private static final Queue<Ref> incoming = new ConcurrentLinkedQueue<>();
+    // only touched on the server thread
+    private static final PriorityQueue<Ref> delayed = new PriorityQueue<>(Comparator.comparingLong(r -> r.due));
+    // every group with tasks, reset when the server stops
+    private static final Set<Group> groups = Collections.newSetFromMap(new WeakHashMap<>());
+    private static volatile long ticks;
+    // bumped when the server stops, tasks of an older server are dropped
+    private static volatile int generation;
+
+    private final Group group;
+    private final String script;
+
+    ScriptScheduler(Group group, String script) {
+        this.group = group;
+        this.script = script;
+    }
+
+    public Task async(Closure<?> work, Closure<?> callback) {
+        return async(work, callback, null);
+    }
+
+    public Task async(Closure<?> work, Closure<?> callback, Closure<?> onError) {
+        Task task = group.admit(script, callback, onError, 0);
+        try {
+            task.future = Workers.POOL.submit(() -> {
+                try {
+                    task.result = work.call();
+                } catch (Throwable tr) {
+                    task.error = tr;
+                } finally {
+                    if (Config.asyncOutput) ScriptOutput.flushPending();
+                }
+                if (!task.cancelled) ready.add(new Ref(task));
+            });
+        } catch (RejectedExecutionException e) {
+            group.release(task);
+            throw new IllegalStateException("Unable to schedule a task of " + script, e);
+        }
+        return task;
+    }
+
+    public Task later(int delay, Closure<?> action) {
+        Task task = group.admit(script, action, null, ticks + Math.max(delay, 1));
+        incoming.add(new Ref(task));
+        return task;
+    }
+
+    // tasks of this script on this engine which have not run or been cancelled yet
+    public int pending() {
+        AtomicInteger count = group.pending.get(script);
+        return count == null ? 0 : count.get();
+    }
+
+    // called at the end of every server tick
+    static void tick() {
+        long now = ++ticks;
+        Ref ref;
+        while ((ref = incoming.poll()) != null) delayed.add(ref);
+        while ((ref = delayed.peek()) != null && ref.due <= now) {
+            delayed.poll();
+            run(ref.get());
+        }
+        // callbacks added while draining wait for the next tick
+        for (int n = ready.size(); n > 0 && (ref = ready.poll()) != null; n--) run(ref.get());
+    }
+
+    // drops every pending task when the server stops
+    static void clear() {
+        generation++;
+        ready.clear();
+        incoming.clear();
+        delayed.clear();
+        synchronized (groups) {
+            for (Group group : groups) group.reset();
+        }
+    }
+
+    // task is null when its engine was collected
+    private static void run(Task task) {
+        if (task == null || !task.group.release(task) || task.generation != generation) return;
+        try {
+            if (task.error != null) {
+                if (task.onError == null) throw task.error;
+                task.onError.call(task.error);
+            } else {
+                task.callback.call(task.result);
+            }
+        } catch (Throwable tr) {
+            SharedScriptPool.INSTANCE.logger().warn("Scheduled task of script " + task.script + " failed", tr);
+        } finally {
+            if (Config.asyncOutput) ScriptOutput.flushPending();
+        }
+    }
+
+    /**
+     * A task handed out to a script.
+     */
+    public static final class Task {
+        private final Group group;
+        private final String script;
+        private final Closure<?> callback, onError;
+        private final long due;
+        private final int generation = ScriptScheduler.generation;
+        private volatile Future<?> future;
+        private volatile Object result;
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+
+        private Task(Group group, String script, Closure<?> callback, Closure<?> onError, long due) {
+            this.group = group;
+            this.script = script;
+            this.callback = callback;
+            this.onError = onError;
+            this.due = due;
+        }
+
+        // the callback will not run, work already running is not interrupted
+        public boolean cancel() {
+            if (!group.release(this)) return false;
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null) f.cancel(false);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // a queued task, only its group keeps it alive
+    private static final class Ref extends WeakReference<Task> {
+        final long due;
+
+        Ref(Task task) {
+            super(task);
+            this.due = task.due;
+        }
+    }
+
+    // the tasks of one engine, counted per script
+    static final class Group {
+        private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+        private final ConcurrentHashMap<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+        Group() {
+            synchronized (groups) {
+                groups.add(this);
+            }
+        }
+
+        private Task admit(String script, Closure<?> callback, Closure<?> onError, long due) {
+            AtomicInteger count = pending.computeIfAbsent(script, k -> new AtomicInteger());
+            if (count.incrementAndGet() > Config.tasksPerScript) {
+                count.decrementAndGet();
+                throw new IllegalStateException("Script " + script + " has " + Config.tasksPerScript + " tasks pending already");
+            }
+            Task task = new Task(this, script, callback, onError, due);
+            tasks.add(task);
+            return task;
+        }
+
+        // false if the task ran or was cancelled already
+        private boolean release(Task task) {
+            if (!tasks.remove(task)) return false;
+            pending.get(task.script).decrementAndGet();
+            return true;
+        }
+
+        // forgets the tasks of a stopped server or a reset engine, they are dropped when they come up
+        void reset() {
+            for (Task task : tasks) task.cancel();
+            pending.clear();
+        }
+    }
+
+    // created on the first async task
+    private static final class Workers {
+        static final ExecutorService POOL;
+
+        static {
+            AtomicInteger id = new AtomicInteger();
+            POOL = Executors.newFixedThreadPool(Config.taskThreads, r -> {
+                Thread t = new Thread(r, "Gropoalder-Task-" + id.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
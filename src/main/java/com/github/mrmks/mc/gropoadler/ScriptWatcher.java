@@ -0,0 +1,240 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree of .groovy files and compiles the changed files on one daemon thread,
+ * the compiled files are registered to the pool by {@link #tick()} on the server thread.
+ * A file is read once it saw no events for the configured delay, so editors writing in several
+ * steps cause a single compile. The hash and pooled name of every file are kept in an index in
+ * the directory, files which did not change while the server was down are not compiled again.
+ * A file is only recorded once it is installed, failed files are compiled again after the next
+ * successful install, which may have pooled a script they depend on, or when they change.
+ */
+final class ScriptWatcher implements Closeable {
+
+    private static final String EXT = ".groovy";
+    private static final String INDEX = ".gropoalder-watch";
+
+    // compiled files waiting for the server thread
+    private static final Queue<Runnable> installs = new ConcurrentLinkedQueue<>();
+
+    private final Path root;
+    private final long delayMillis;
+    private final WatchService watch;
+    private final Thread thread;
+    // source hash of the last install per file, saving recompiles of touched but unchanged files
+    private final Map<Path, String> hashes = new ConcurrentHashMap<>();
+    // relative path -> "hash fullName" of the last install, read at start
+    private final Properties index = new Properties();
+    private final Set<Path> pending = new LinkedHashSet<>();
+    // files whose compile or install failed, queued again once another file was installed
+    private final Set<Path> failed = ConcurrentHashMap.newKeySet();
+    private volatile boolean retry;
+
+    ScriptWatcher(Path root, long delayMillis) throws IOException {
+        if (!Files.isDirectory(root)) Files.createDirectories(root);
+        this.root = root;
+        this.delayMillis = delayMillis;
+        this.watch = root.getFileSystem().newWatchService();
+        this.thread = new Thread(this::run, "Gropoalder-Script-Watcher");
+        this.thread.setDaemon(true);
+    }
+
+    // call it on the server thread, files which changed while the server was down are queued
+    void start() throws IOException {
+        Path file = root.resolve(INDEX);
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                index.load(in);
+            }
+        }
+        scan(root);
+        for (Path path : pending.toArray(new Path[0])) {
+            if (unchanged(path)) pending.remove(path);
+        }
+        thread.start();
+    }
+
+    // registers the files compiled since the last call, called at the end of every server tick
+    static void tick() {
+        Runnable install;
+        while ((install = installs.poll()) != null) install.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watch.close();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        installs.clear();
+    }
+
+    private void run() {
+        try {
+            reloadPending();
+            while (true) {
+                WatchKey key = pending.isEmpty() && failed.isEmpty() ? watch.take() : watch.poll(delayMillis, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    if (retry) {
+                        retry = false;
+                        pending.addAll(failed);
+                        failed.clear();
+                    }
+                    reloadPending();
+                    continue;
+                }
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan(root);
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (Files.isDirectory(path)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) scan(path);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        // the pooled version stays, it may be in use and the storage keeps it anyway
+                        pending.remove(path);
+                        failed.remove(path);
+                        hashes.remove(path);
+                    } else if (path.getFileName().toString().endsWith(EXT)) {
+                        pending.add(path);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            /* closed */
+        } catch (IOException e) {
+            SharedScriptPool.INSTANCE.logger().warn("Stopped watching scripts in " + root, e);
+        }
+    }
+
+    // registers every directory below start and queues the scripts found
+    private void scan(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(EXT)) pending.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // true if the file has the text of its last compile, and the storage still pools that text
+    private boolean unchanged(Path file) {
+        String entry = index.getProperty(key(file));
+        String text = read(file);
+        if (entry == null || text == null) return false;
+        int i = entry.indexOf(' ');
+        String hash = SourceStore.hash(text);
+        if (!entry.substring(0, i < 0 ? entry.length() : i).equals(hash)) return false;
+        // a file without a pooled name asks for nothing
+        if (i >= 0 && !SharedScriptPool.INSTANCE.pooled(entry.substring(i + 1), hash)) return false;
+        hashes.put(file, hash);
+        return true;
+    }
+
+    private void reloadPending() {
+        boolean changed = false;
+        for (Path file : pending) changed |= reload(file);
+        pending.clear();
+        if (changed) saveIndex();
+    }
+
+    // compiles a changed file and queues it for the server thread, true if it was recorded right away
+    private boolean reload(Path file) {
+        String text = read(file);
+        if (text == null) return false;
+
+        String hash = SourceStore.hash(text);
+        if (hash.equals(hashes.get(file))) return false;
+        Path name = root.relativize(file);
+        SharedScriptPool.Prepared prepared;
+        try {
+            prepared = SharedScriptPool.INSTANCE.prepare(text, file.getFileName().toString());
+        } catch (Exception e) {
+            SharedScriptPool.INSTANCE.logger().warn("Unable to compile script " + name, e);
+            failed.add(file);
+            return false;
+        }
+        if (prepared == null) {
+            // asks for nothing, there is nothing to install
+            record(file, hash, hash);
+            return true;
+        }
+        installs.add(() -> {
+            try {
+                String full = SharedScriptPool.INSTANCE.install(prepared);
+                if (full != null) SharedScriptPool.INSTANCE.logger().info("Reloaded " + full + " from " + name);
+            } catch (Exception e) {
+                SharedScriptPool.INSTANCE.logger().warn("Unable to reload script " + name, e);
+                failed.add(file);
+                return;
+            }
+            record(file, hash, hash + " " + prepared.fullName);
+            saveIndex();
+            if (!failed.isEmpty()) retry = true;
+        });
+        return false;
+    }
+
+    private void record(Path file, String hash, String entry) {
+        hashes.put(file, hash);
+        index.setProperty(key(file), entry);
+        failed.remove(file);
+    }
+
+    private String read(Path file) {
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            SharedScriptPool.INSTANCE.logger().warn("Unable to read script " + file, e);
+            return null;
+        }
+    }
+
+    // called by the watcher and the server thread
+    private synchronized void saveIndex() {
+        Path file = root.resolve(INDEX);
+        Path tmp = root.resolve(INDEX + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                index.store(out, "Scripts compiled by the script watcher");
+            }
+            BytecodeStore.replace(tmp.toFile(), file.toFile());
+        } catch (IOException e) {
+            SharedScriptPool.INSTANCE.logger().warn("Unable to save the script watcher index", e);
+        }
+    }
+
+    private String key(Path file) {
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+}
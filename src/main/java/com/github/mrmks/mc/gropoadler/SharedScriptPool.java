@@ -3,24 +3,66 @@ package com.github.mrmks.mc.gropoadler;
 import groovy.lang.GroovyClassLoader;
 import groovy.lang.Script;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilerConfiguration;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public enum SharedScriptPool {
     INSTANCE;
 
-    private GroovyClassLoader loader;
-    private final ConcurrentHashMap<String, Class<?>> classesCache = new ConcurrentHashMap<>();
+    // created on first use, so a storage may be attached before the server starts
+    private volatile Compiler compiler;
+    private final ConcurrentHashMap<String, Loaded> classesCache = new ConcurrentHashMap<>();
+    // names being compiled from the storage, a lookup of one waits for it instead of compiling it again
+    private final ConcurrentHashMap<String, CompletableFuture<Loaded>> defining = new ConcurrentHashMap<>();
+    // loaders of evicted versions, enqueued once their classes are unloaded
+    private final ReferenceQueue<ClassLoader> unloadQueue = new ReferenceQueue<>();
+    private final Set<Reference<ClassLoader>> evictedLoaders = ConcurrentHashMap.newKeySet();
+    private final AtomicLong loadedCount = new AtomicLong(), evictedCount = new AtomicLong(), unloadedCount = new AtomicLong();
+    private volatile int maxLoaded = 0;
+    private volatile long idleNanos = 0;
     private volatile DataStorage dataStorage;
+    private volatile BytecodeStore bytecodeStore;
     private Logger logger;
 
     SharedScriptPool() {}
 
-    void register(Class<?> klass, String replace, int ver, String sourceText) {
+    // returns the full name the class is registered with, or null without a storage
+    String register(Class<?> klass, String replace, int ver, String sourceText) {
+        return register(klass, replace, ver, sourceText, false, null);
+    }
+
+    // with statik the pool serves the source compiled statically instead of the given class,
+    // user is the engine running klass, which keeps it from being evicted
+    String register(Class<?> klass, String replace, int ver, String sourceText, boolean statik, Object user) {
+        return register(klass, replace, ver, sourceText, statik, false, user);
+    }
 
-        if (dataStorage == null) return;
+    // owned when klass was defined by the pool, its loader is then tracked once the version is replaced
+    private String register(Class<?> klass, String replace, int ver, String sourceText, boolean statik, boolean owned, Object user) {
+
+        if (dataStorage == null) return null;
 
         String full = generateFullName(klass, replace);
         VersionSource vs = dataStorage.get(full);
@@ -28,28 +70,182 @@ public enum SharedScriptPool {
         if (vs != null && ver < vs.version())
             throw new IllegalStateException("Re-registering script with older version: " + full + "(" + klass.getName() + ") {" + ver + "} -> {" + vs.version() + "}");
 
-        logger.info("Script " + klass.getName() + " registered with name " + full);
+        // every engine evaluating a pooled script registers it again, it only becomes a user of the defined version
+        boolean stored = vs != null && vs.version() == ver && vs.isStatic() == statik && sameText(vs, sourceText);
+        Loaded current = classesCache.get(full);
+        if (stored && current != null && current.ver == ver) {
+            current.lastUsed = System.nanoTime();
+            if (user != null) current.use(user);
+            return full;
+        }
+
+        // a static script serves the given class until its static class is compiled in the background
+        Loaded loaded = new Loaded(klass, owned, ver);
+        if (user != null) loaded.use(user);
+
+        logger.info("Script " + klass.getName() + " registered with name " + full + (statik ? ", compiling statically" : ""));
+
+        if (!stored) dataStorage.put(full, sourceText, ver, statik);
+        Loaded old = classesCache.put(full, loaded);
+        if (old == null || old.klass != loaded.klass) loadedCount.incrementAndGet();
+        if (old != null && old.klass != loaded.klass) retire(old);
+        compiler().loader.add(klass);
+        trim();
+        if (statik) compileStatic(full, sourceText, loaded);
+        return full;
+    }
+
+    // replaces the placeholder with the static class, through the bytecode cache like any pooled script
+    private void compileStatic(String full, String sourceText, Loaded placeholder) {
+        StaticCompiler.EXECUTOR.execute(() -> {
+            Loaded compiled;
+            try {
+                compiled = new Loaded(compile(full, new Source(sourceText, placeholder.ver, true), createLoader()), true, placeholder.ver);
+            } catch (Throwable tr) {
+                logger.warn("Static compilation of script " + full + " failed, it stays dynamic", tr);
+                return;
+            }
+            // a newer version may have been registered meanwhile
+            if (classesCache.replace(full, placeholder, compiled)) {
+                PoolLoader loader = compiler().loader;
+                loader.remove(placeholder.klass);
+                loader.add(compiled.klass);
+                logger.info("Script " + full + " compiled statically");
+            }
+        });
+    }
+
+    /**
+     * Compiles a script file off the server thread, for {@link #install} to register on the server thread.
+     * Returns null when the file has no cacheScript or it names nothing.
+     */
+    Prepared prepare(String text, String fileName) throws CompilationFailedException {
+        Compiler c = compiler();
+        Class<?> klass = CompiledScript.compile(text, fileName, c.config, c.loader).define(c.loader);
+        GvyPoolEngineFactory.CacheSpec spec = GvyPoolEngineFactory.CacheSpec.of(klass);
+        return spec == null ? null : new Prepared(klass, spec, generateFullName(klass, spec.name), text);
+    }
+
+    /**
+     * Registers a prepared script file under the name its cacheScript returns, replacing the pooled version at once.
+     * Invocations already running finish on the old class. Call it on the server thread, which owns the storage.
+     * Returns the full name, or null without a storage or when it is pooled with this text already.
+     */
+    String install(Prepared prepared) {
+        DataStorage storage = dataStorage;
+        if (storage == null) return null;
 
-        dataStorage.put(full, sourceText, ver);
-        classesCache.put(full, klass);
+        GvyPoolEngineFactory.CacheSpec spec = prepared.spec;
+        VersionSource vs = storage.get(prepared.fullName);
+        if (vs != null && vs.version() == spec.ver && vs.isStatic() == spec.statik && sameText(vs, prepared.text)) return null;
+        return register(prepared.klass, spec.name, spec.ver, prepared.text, spec.statik, true, null);
     }
 
-    Class<?> loadCache(String fullName) {
+    // true if the storage keeps the given name with the text of the given hash, call it on the server thread
+    boolean pooled(String fullName, String hash) {
+        DataStorage storage = dataStorage;
+        VersionSource vs = storage == null ? null : storage.get(fullName);
+        if (vs == null) return false;
+        String h = vs.hash();
+        return hash.equals(h != null ? h : SourceStore.hash(vs.text()));
+    }
+
+    private static boolean sameText(VersionSource vs, String text) {
+        String hash = vs.hash();
+        return hash != null ? hash.equals(SourceStore.hash(text)) : text.equals(vs.text());
+    }
+
+    // user keeps the returned version from being evicted for as long as it is reachable
+    Class<?> loadCache(String fullName, Object user) {
 
         if (dataStorage == null) return null;
 
-        Class<?> klass = classesCache.get(fullName);
-        if (klass == null) {
-            VersionSource source = dataStorage.get(fullName);
-            if (source == null) return null;
-            else {
-                String klassName = fullName.substring(fullName.lastIndexOf('.'));
-                klass = loader.parseClass(source.text(), "Script_Loader_" + klassName + ".groovy");
-                if (klass != null) {
-                    classesCache.put(fullName, klass);
+        Loaded loaded = classesCache.get(fullName);
+        if (loaded == null && (loaded = define(fullName, compiler().loader, true)) == null) return null;
+        loaded.lastUsed = System.nanoTime();
+        if (user != null) loaded.use(user);
+        return loaded.klass;
+    }
+
+    // the user no longer runs the version of the given name, which may be evicted once nothing else does
+    void release(String fullName, Object user) {
+        Loaded loaded = classesCache.get(fullName);
+        if (loaded != null) loaded.release(user);
+    }
+
+    // compiles and publishes the stored version of the name, or with join waits for the compile already running.
+    // null when the storage has no such name, or without join when another thread compiles it
+    private Loaded define(String fullName, GroovyClassLoader resolver, boolean join) {
+        CompletableFuture<Loaded> future = new CompletableFuture<>();
+        CompletableFuture<Loaded> running = defining.putIfAbsent(fullName, future);
+        if (running != null) {
+            if (!join) return null;
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                // the precompile may have run before a script it depends on, try once more here
+                return define(fullName, resolver, true);
+            }
+        }
+        try {
+            Loaded loaded = classesCache.get(fullName);
+            DataStorage storage = dataStorage;
+            VersionSource source;
+            if (loaded == null && storage != null && (source = storage.get(fullName)) != null) {
+                loaded = publish(fullName, new Loaded(compile(fullName, source, resolver), true, source.version()));
+            }
+            // removed first, so a retry after a failure never joins the same future
+            defining.remove(fullName, future);
+            future.complete(loaded);
+            return loaded;
+        } catch (Throwable tr) {
+            defining.remove(fullName, future);
+            future.completeExceptionally(tr);
+            throw tr;
+        }
+    }
+
+    // the version of the given name currently defined, -1 if none is
+    int version(String fullName) {
+        Loaded loaded = fullName == null ? null : classesCache.get(fullName);
+        return loaded == null ? -1 : loaded.ver;
+    }
+
+    // resolver is only used to look up referenced classes while compiling
+    private Class<?> compile(String fullName, VersionSource source, GroovyClassLoader resolver) {
+        Object event = ScriptEvents.beginCompile();
+        Compiler c = compiler();
+        // the text is only decoded when there is nothing cached to define
+        String text = null, hash = source.hash();
+        BytecodeStore store = bytecodeStore;
+        if (store != null && hash == null) hash = SourceStore.hash(text = source.text());
+        String key = store == null ? null : BytecodeStore.key(hash, source.isStatic() ? c.staticFingerprint : c.fingerprint);
+
+        CompiledScript compiled = null;
+        boolean cached = false;
+        if (store != null) {
+            try {
+                cached = (compiled = store.read(fullName, key)) != null;
+            } catch (IOException e) {
+                logger.warn("Unable to read cached bytecode of script " + fullName, e);
+            }
+        }
+
+        if (compiled == null) {
+            if (text == null) text = source.text();
+            String klassName = fullName.substring(fullName.lastIndexOf('.'));
+            compiled = CompiledScript.compile(text, "Script_Loader_" + klassName + ".groovy", source.isStatic() ? c.staticConfig : c.config, resolver);
+            if (store != null) {
+                try {
+                    store.write(fullName, key, compiled);
+                } catch (IOException e) {
+                    logger.warn("Unable to cache bytecode of script " + fullName, e);
                 }
             }
         }
+
+        Class<?> klass = compiled.define(c.loader);
+        ScriptEvents.compile(event, fullName, source.version(), text == null ? -1 : text.length(), cached);
         return klass;
     }
 
@@ -84,38 +280,343 @@ public enum SharedScriptPool {
         return Script.class.getClassLoader();
     }
 
-    public void warmup() {
-        loader = java.security.AccessController.doPrivileged(
+    // a loader of its own for compiles off the server thread, which sees the classes of the pool loader
+    @SuppressWarnings("removal")
+    private GroovyClassLoader createLoader() {
+        Compiler c = compiler();
+        return java.security.AccessController.doPrivileged(
                 (PrivilegedAction<GroovyClassLoader>) () ->
-                        new GroovyClassLoader(getParentLoader(), CompilerConfiguration.DEFAULT)
+                        new GroovyClassLoader(c.loader, c.config)
         );
-        loader.parseClass("1 + 2 + 3 + 4");
-        loader.clearCache();
+    }
+
+    private Compiler compiler() {
+        Compiler c = compiler;
+        if (c == null) {
+            synchronized (this) {
+                if ((c = compiler) == null) {
+                    compiler = c = new Compiler();
+                    logger.info("Compiling scripts with " + c.fingerprint);
+                }
+            }
+        }
+        return c;
+    }
+
+    // loads the compiler classes, through a loader of its own so the pool loader caches nothing
+    public void warmup() {
+        createLoader().parseClass("1 + 2 + 3 + 4");
+    }
+
+    /**
+     * Compile every script of the attached storage on a bounded worker pool,
+     * each worker resolving classes through its own loader.
+     * Scripts already in the cache are skipped, compiled classes never replace registered ones.
+     * At most as many scripts as may stay loaded are compiled, the others are compiled on first use.
+     */
+    public void precompile(int threads, boolean wait) {
+        DataStorage storage = dataStorage;
+        if (storage == null) return;
+
+        List<String> names = new ArrayList<>(storage.names());
+        if (names.isEmpty()) return;
+        int max = maxLoaded;
+        if (max > 0 && names.size() > max) {
+            logger.info("Only precompiling " + max + " of " + names.size() + " pooled scripts, the limit of loaded scripts");
+            names = names.subList(0, max);
+        }
+
+        int total = names.size(), step = Math.max(total / 10, 1);
+        AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+        long start = System.nanoTime();
+        logger.info("Precompiling " + total + " pooled scripts with " + threads + " threads");
+
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread t = new Thread(r, "Gropoalder-Precompile-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ThreadLocal<GroovyClassLoader> loaders = ThreadLocal.withInitial(this::createLoader);
+
+        for (String name : names) {
+            pool.execute(() -> {
+                try {
+                    if (!classesCache.containsKey(name)) define(name, loaders.get(), false);
+                } catch (Throwable tr) {
+                    failed.incrementAndGet();
+                    logger.warn("Unable to precompile script " + name, tr);
+                }
+                int d = done.incrementAndGet();
+                if (d == total) {
+                    long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    logger.info("Precompiled " + (total - failed.get()) + "/" + total + " pooled scripts in " + ms + "ms");
+                } else if (d % step == 0) {
+                    logger.info("Precompiling pooled scripts: " + d + "/" + total);
+                }
+            });
+        }
+        pool.shutdown();
+
+        if (wait) {
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // keeps the first class published for a name, every version lives in its own loader
+    private Loaded publish(String fullName, Loaded loaded) {
+        Loaded prev = classesCache.putIfAbsent(fullName, loaded);
+        if (prev != null) return prev;
+        compiler().loader.add(loaded.klass);
+        loadedCount.incrementAndGet();
+        trim();
+        return loaded;
+    }
+
+    private void retire(Loaded loaded) {
+        evictedCount.incrementAndGet();
+        compiler().loader.remove(loaded.klass);
+        ClassLoader cl = loaded.klass.getClassLoader();
+        if (loaded.owned && cl != null) evictedLoaders.add(new WeakReference<>(cl, unloadQueue));
+        pollUnloaded();
+    }
+
+    // evicts least recently used versions until at most maxLoaded are cached,
+    // versions an engine still uses are kept even when that leaves more
+    private synchronized void trim() {
+        int max = maxLoaded;
+        while (max > 0 && classesCache.size() > max) {
+            Map.Entry<String, Loaded> lru = null;
+            for (Map.Entry<String, Loaded> e : classesCache.entrySet()) {
+                if (e.getValue().inUse()) continue;
+                if (lru == null || e.getValue().lastUsed - lru.getValue().lastUsed < 0) lru = e;
+            }
+            if (lru == null || !classesCache.remove(lru.getKey(), lru.getValue())) break;
+            retire(lru.getValue());
+        }
+    }
+
+    /**
+     * Evicts versions no engine uses and nobody looked up for longer than the idle limit,
+     * call it now and then. Evicted classes are unloaded once nothing references them.
+     */
+    public void sweep() {
+        long idle = idleNanos;
+        if (idle > 0) {
+            long now = System.nanoTime();
+            int count = 0;
+            for (Map.Entry<String, Loaded> e : classesCache.entrySet()) {
+                Loaded loaded = e.getValue();
+                if (now - loaded.lastUsed > idle && !loaded.inUse() && classesCache.remove(e.getKey(), loaded)) {
+                    retire(loaded);
+                    count++;
+                }
+            }
+            if (count > 0) logger.info("Evicted " + count + " idle pooled scripts, " + classReport());
+        }
+        pollUnloaded();
+    }
+
+    private void pollUnloaded() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = unloadQueue.poll()) != null) {
+            if (evictedLoaders.remove(ref)) unloadedCount.incrementAndGet();
+        }
+    }
+
+    public void limits(int maxLoaded, long idleMillis) {
+        this.maxLoaded = Math.max(maxLoaded, 0);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(idleMillis, 0L));
+        trim();
+    }
+
+    String classReport() {
+        pollUnloaded();
+        return "cached=" + classesCache.size()
+                + " loaded=" + loadedCount.get()
+                + " evicted=" + evictedCount.get()
+                + " unloaded=" + unloadedCount.get();
     }
 
     public void attach(DataStorage storage) {
         this.dataStorage = storage;
     }
 
+    // keep compiled bytecode of pooled scripts in the given directory across restarts
+    public void attachBytecodeCache(File dir) {
+        this.bytecodeStore = dir == null ? null : new BytecodeStore(dir);
+    }
+
     public void clear() {
         this.classesCache.clear();
         this.dataStorage = null;
-        if (this.loader != null)
-            this.loader.clearCache();
+        this.bytecodeStore = null;
+        // the next use starts over with a new pool loader, which holds no declared class of this run
+        synchronized (this) {
+            this.compiler = null;
+        }
     }
 
     public void logger(Logger modLog) {
         this.logger = modLog;
     }
 
+    Logger logger() {
+        return logger;
+    }
+
+    // a script file compiled by prepare
+    static final class Prepared {
+        final Class<?> klass;
+        final GvyPoolEngineFactory.CacheSpec spec;
+        final String fullName;
+        final String text;
+
+        private Prepared(Class<?> klass, GvyPoolEngineFactory.CacheSpec spec, String fullName, String text) {
+            this.klass = klass;
+            this.spec = spec;
+            this.fullName = fullName;
+            this.text = text;
+        }
+    }
+
+    // the settings scripts are compiled with, and the loader they are compiled against
+    private static final class Compiler {
+        final CompilerConfiguration config = CompilerSettings.configuration();
+        final String fingerprint = CompilerSettings.fingerprint(config);
+        // for scripts flagged static by their cacheScript
+        final CompilerConfiguration staticConfig = CompilerSettings.configuration(true);
+        final String staticFingerprint = CompilerSettings.fingerprint(staticConfig);
+        // resolves the classes declared by every defined version, scripts are compiled against it
+        final PoolLoader loader = PoolLoader.create(getParentLoader(), config);
+    }
+
+    // the classes declared by pooled scripts are cache entries, so later scripts resolve them by name
+    private static final class PoolLoader extends GroovyClassLoader {
+        private PoolLoader(ClassLoader parent, CompilerConfiguration config) {
+            super(parent, config);
+        }
+
+        @SuppressWarnings("removal")
+        static PoolLoader create(ClassLoader parent, CompilerConfiguration config) {
+            return java.security.AccessController.doPrivileged((PrivilegedAction<PoolLoader>) () -> new PoolLoader(parent, config));
+        }
+
+        synchronized void add(Class<?> main) {
+            for (Class<?> c : declared(main)) setClassCacheEntry(c);
+        }
+
+        // only drops the entries still naming the classes of main, a newer version may have replaced them
+        synchronized void remove(Class<?> main) {
+            for (Class<?> c : declared(main)) {
+                if (getClassCacheEntry(c.getName()) == c) removeClassCacheEntry(c.getName());
+            }
+        }
+
+        private static List<Class<?>> declared(Class<?> main) {
+            try {
+                return CompiledScript.declaredClasses(main);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Compiled script is missing a declared class", e);
+            }
+        }
+    }
+
+    // one thread, static compiles are rare and run off the server thread
+    private static final class StaticCompiler {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Gropoalder-Static-Compiler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // a defined version of a pooled script, owned when its loader holds nothing else
+    private static final class Loaded {
+        final Class<?> klass;
+        final boolean owned;
+        final int ver;
+        volatile long lastUsed = System.nanoTime();
+        // engines running this version, dropped by the GC with the engine
+        private final Set<Object> users = Collections.newSetFromMap(new WeakHashMap<>());
+
+        Loaded(Class<?> klass, boolean owned, int ver) {
+            this.klass = klass;
+            this.owned = owned;
+            this.ver = ver;
+        }
+
+        synchronized void use(Object user) {
+            users.add(user);
+        }
+
+        synchronized void release(Object user) {
+            users.remove(user);
+        }
+
+        synchronized boolean inUse() {
+            return !users.isEmpty();
+        }
+    }
+
     public interface VersionSource {
         String text();
         int version();
+
+        // SHA-256 of the text as by SourceStore, lets cached bytecode be found without reading the text
+        default String hash() {
+            return null;
+        }
+
+        // compiled with @CompileStatic, as asked for by the script's cacheScript
+        default boolean isStatic() {
+            return false;
+        }
+    }
+
+    private static final class Source implements VersionSource {
+        private final String text;
+        private final int ver;
+        private final boolean statik;
+
+        Source(String text, int ver, boolean statik) {
+            this.text = text;
+            this.ver = ver;
+            this.statik = statik;
+        }
+
+        @Override
+        public String text() {
+            return text;
+        }
+
+        @Override
+        public int version() {
+            return ver;
+        }
+
+        @Override
+        public boolean isStatic() {
+            return statik;
+        }
     }
 
     public interface DataStorage {
         void put(String name, String text, int ver);
         VersionSource get(String name);
+
+        // storages which cannot keep the static flag drop it, the script then compiles dynamically
+        default void put(String name, String text, int ver, boolean statik) {
+            put(name, text, ver);
+        }
+
+        default Collection<String> names() {
+            return Collections.emptyList();
+        }
     }
 
 }
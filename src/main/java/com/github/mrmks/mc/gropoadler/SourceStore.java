@@ -0,0 +1,83 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflated script sources, one file per distinct text named after its SHA-256.
+ * Files are never rewritten, a changed script gets a new file and the old one is
+ * removed by {@link #retain} once nothing refers to it anymore.
+ */
+final class SourceStore {
+
+    private static final String EXT = ".z";
+
+    private final File dir;
+    // hashes known to be on disk
+    private final Set<String> present = ConcurrentHashMap.newKeySet();
+
+    SourceStore(File dir) {
+        this.dir = dir;
+    }
+
+    static String hash(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return BytecodeStore.toHex(md.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String read(String hash) throws IOException {
+        File file = fileOf(hash);
+        try (InputStream in = new InflaterInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(file.length() * 4, Integer.MAX_VALUE - 8));
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) bytes.write(buf, 0, n);
+            present.add(hash);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // writes the text unless a file with this hash exists already
+    void write(String hash, String text) throws IOException {
+        if (present.contains(hash)) return;
+        File file = fileOf(hash);
+        if (!file.isFile()) {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+            File tmp = new File(dir, file.getName() + ".tmp");
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(tmp), deflater)) {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                deflater.end();
+            }
+            BytecodeStore.replace(tmp, file);
+        }
+        present.add(hash);
+    }
+
+    // deletes the files of every hash not in use
+    void retain(Collection<String> used) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXT));
+        if (files == null) return;
+        for (File file : files) {
+            String hash = file.getName().substring(0, file.getName().length() - EXT.length());
+            if (!used.contains(hash) && file.delete()) present.remove(hash);
+        }
+    }
+
+    private File fileOf(String hash) {
+        return new File(dir, hash + EXT);
+    }
+}
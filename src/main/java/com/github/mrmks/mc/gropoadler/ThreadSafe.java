@@ -0,0 +1,15 @@
+package com.github.mrmks.mc.gropoadler;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a script function which may run on a worker thread, next to the same function of other scripts.
+ * A GvyLoader engine calling a function every loaded script annotates, with only plain values
+ * (strings, numbers, booleans, enums) as arguments, runs the scripts in parallel and keeps
+ * the order of their results. Such functions must not touch world state or shared mutable data.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ThreadSafe {
+}
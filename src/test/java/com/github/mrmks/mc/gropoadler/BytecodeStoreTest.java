@@ -0,0 +1,104 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.GroovyClassLoader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BytecodeStoreTest {
+
+    private static final String SOURCE = "class Point { int x }\ndef v(){ [1, 2].collect { it * 2 } }";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void hitReturnsTheWrittenClasses() throws IOException {
+        BytecodeStore store = new BytecodeStore(dir);
+        CompiledScript written = compile();
+        String key = BytecodeStore.key(SourceStore.hash(SOURCE), "fp");
+        store.write("a.A", key, written);
+
+        CompiledScript read = store.read("a.A", key);
+        assertNotNull(read);
+        assertEquals(written.mainClass(), read.mainClass());
+        assertEquals(Collections.singletonList("Point"), read.declared());
+        assertEquals(written.classes().keySet(), read.classes().keySet());
+        for (Map.Entry<String, byte[]> e : written.classes().entrySet()) {
+            assertTrue(Arrays.equals(e.getValue(), read.classes().get(e.getKey())), e.getKey());
+        }
+    }
+
+    @Test
+    void missingFileOrOtherKeyIsAMiss() throws IOException {
+        BytecodeStore store = new BytecodeStore(dir);
+        String hash = SourceStore.hash(SOURCE);
+        String key = BytecodeStore.key(hash, "groovy=4.0.0");
+        assertNull(store.read("a.A", key));
+
+        store.write("a.A", key, compile());
+        assertNull(store.read("a.B", key));
+        assertNull(store.read("a.A", BytecodeStore.key(SourceStore.hash(SOURCE + " "), "groovy=4.0.0")));
+        // other compiler settings
+        assertNotEquals(key, BytecodeStore.key(hash, "groovy=4.0.1"));
+        assertNull(store.read("a.A", BytecodeStore.key(hash, "groovy=4.0.1")));
+        assertNotNull(store.read("a.A", key));
+    }
+
+    @Test
+    void truncatedFileIsAMiss() throws IOException {
+        BytecodeStore store = new BytecodeStore(dir);
+        String key = BytecodeStore.key(SourceStore.hash(SOURCE), "fp");
+        store.write("a.A", key, compile());
+        File file = only();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        for (int length = 0; length < bytes.length; length += 7) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            assertNull(store.read("a.A", key), "truncated to " + length);
+        }
+    }
+
+    @Test
+    void corruptFileIsAMiss() throws IOException {
+        BytecodeStore store = new BytecodeStore(dir);
+        String key = BytecodeStore.key(SourceStore.hash(SOURCE), "fp");
+        store.write("a.A", key, compile());
+        File file = only();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x40);
+        }
+        assertNull(store.read("a.A", key));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(0);
+        }
+        assertNull(store.read("a.A", key));
+    }
+
+    private File only() {
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static CompiledScript compile() {
+        return CompiledScript.compile(SOURCE, "Script_Test.groovy", CompilerSettings.configuration(), new GroovyClassLoader());
+    }
+}
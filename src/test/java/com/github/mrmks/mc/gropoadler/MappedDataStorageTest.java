@@ -0,0 +1,78 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedDataStorageTest {
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    void setUp() {
+        SharedScriptPool.INSTANCE.logger(LogManager.getLogger("gropoalder"));
+    }
+
+    @Test
+    void scriptsSurviveReopening() throws IOException {
+        MappedDataStorage storage = new MappedDataStorage(dir);
+        storage.put("a.A", "def v(){ 'A' }", 1);
+        storage.put("a.B", "def v(){ 2 }", 3, true);
+        storage.put("a.A", "def v(){ '\u00e4\u00fc \u6f22' }", 2);
+
+        MappedDataStorage reopened = new MappedDataStorage(dir);
+        assertEquals(new HashSet<>(Arrays.asList("a.A", "a.B")), new HashSet<>(reopened.names()));
+        SharedScriptPool.VersionSource a = reopened.get("a.A"), b = reopened.get("a.B");
+        assertEquals("def v(){ '\u00e4\u00fc \u6f22' }", a.text());
+        assertEquals(2, a.version());
+        assertFalse(a.isStatic());
+        assertEquals(SourceStore.hash(a.text()), a.hash());
+        assertEquals("def v(){ 2 }", b.text());
+        assertEquals(3, b.version());
+        assertTrue(b.isStatic());
+        assertNull(reopened.get("a.C"));
+    }
+
+    @Test
+    void unchangedPutAppendsNothing() throws IOException {
+        MappedDataStorage storage = new MappedDataStorage(dir);
+        storage.put("a.A", "def v(){ 1 }", 1);
+        long data = new File(dir, "scripts.dat").length(), index = new File(dir, "scripts.idx").length();
+        storage.put("a.A", "def v(){ 1 }", 1);
+        assertEquals(data, new File(dir, "scripts.dat").length());
+        assertEquals(index, new File(dir, "scripts.idx").length());
+    }
+
+    @Test
+    void otherWritersAreSeen() throws IOException {
+        MappedDataStorage reader = new MappedDataStorage(dir);
+        new MappedDataStorage(dir).put("a.A", "def v(){ 1 }", 4);
+        assertEquals(4, reader.get("a.A").version());
+    }
+
+    @Test
+    void tornRecordIsIgnoredAndOverwritten() throws IOException {
+        new MappedDataStorage(dir).put("a.A", "def v(){ 1 }", 1);
+        // a writer which died half way through its index record
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "scripts.idx"), true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+
+        MappedDataStorage storage = new MappedDataStorage(dir);
+        assertEquals(1, storage.get("a.A").version());
+        storage.put("a.B", "def v(){ 2 }", 1);
+        MappedDataStorage reopened = new MappedDataStorage(dir);
+        assertEquals("def v(){ 1 }", reopened.get("a.A").text());
+        assertEquals("def v(){ 2 }", reopened.get("a.B").text());
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.apache.logging.log4j.LogManager;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptBudgetTest {
+
+    private long perCall, perTick;
+
+    @BeforeEach
+    void setUp() {
+        SharedScriptPool.INSTANCE.logger(LogManager.getLogger("gropoalder"));
+        perCall = ScriptBudget.perCallNanos;
+        perTick = ScriptBudget.perTickNanos;
+        ScriptBudget.newTick();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ScriptBudget.perCallNanos = perCall;
+        ScriptBudget.perTickNanos = perTick;
+        ScriptBudget.newTick();
+    }
+
+    @Test
+    void checkThrowsPastTheCallDeadline() throws InterruptedException {
+        ScriptBudget.perCallNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        ScriptBudget.perTickNanos = TimeUnit.SECONDS.toNanos(1);
+        ScriptBudget.Frame frame = ScriptBudget.enter(new Object(), "a.Loop");
+        try {
+            assertFalse(ScriptBudget.check());
+            Thread.sleep(5);
+            ScriptBudgetException e = assertThrows(ScriptBudgetException.class, ScriptBudget::check);
+            assertEquals("Script a.Loop ran over its budget of 1ms", e.getMessage());
+        } finally {
+            ScriptBudget.exit(frame);
+        }
+        // nothing runs on this thread any more
+        assertFalse(ScriptBudget.check());
+    }
+
+    @Test
+    void nestedCallsRunUnderTheOutermostBudget() {
+        ScriptBudget.Frame outer = ScriptBudget.enter(new Object(), "a.Outer");
+        try {
+            assertNotNull(outer);
+            assertNull(ScriptBudget.enter(new Object(), "a.Inner"));
+        } finally {
+            ScriptBudget.exit(outer);
+        }
+    }
+
+    @Test
+    void usedTickBudgetDefersOnlyItsOwner() throws InterruptedException {
+        ScriptBudget.perTickNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        Object spent = new Object(), other = new Object();
+        ScriptBudget.Frame frame = ScriptBudget.enter(spent, "a.Same");
+        Thread.sleep(5);
+        ScriptBudget.exit(frame);
+
+        assertSame(ScriptBudget.DEFERRED, ScriptBudget.enter(spent, "a.Same"));
+        frame = ScriptBudget.enter(other, "a.Same");
+        assertNotSame(ScriptBudget.DEFERRED, frame);
+        ScriptBudget.exit(frame);
+
+        ScriptBudget.newTick();
+        frame = ScriptBudget.enter(spent, "a.Same");
+        assertNotSame(ScriptBudget.DEFERRED, frame);
+        ScriptBudget.exit(frame);
+    }
+
+    @Test
+    void budgetModeInjectsTheCheckIntoLoops() throws Exception {
+        boolean budget = Config.budget;
+        Config.budget = true;
+        Class<?> loop;
+        try (GroovyClassLoader loader = new GroovyClassLoader(getClass().getClassLoader(), CompilerSettings.configuration())) {
+            loop = loader.parseClass("while (true) {}", "Loop.groovy");
+        } finally {
+            Config.budget = budget;
+        }
+        Script script = InvokerHelper.createScript(loop, new Binding());
+
+        ScriptBudget.perCallNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        ScriptBudget.perTickNanos = TimeUnit.SECONDS.toNanos(1);
+        ScriptBudget.Frame frame = ScriptBudget.enter(new Object(), "Loop");
+        try {
+            assertThrows(ScriptBudgetException.class, script::run);
+        } finally {
+            ScriptBudget.exit(frame);
+        }
+    }
+
+    @Test
+    void budgetModeChangesTheFingerprint() {
+        boolean budget = Config.budget;
+        try {
+            Config.budget = false;
+            String plain = CompilerSettings.fingerprint(CompilerSettings.configuration());
+            Config.budget = true;
+            String checked = CompilerSettings.fingerprint(CompilerSettings.configuration());
+            assertNotEquals(plain, checked);
+            assertTrue(checked.startsWith("format="));
+        } finally {
+            Config.budget = budget;
+        }
+    }
+}
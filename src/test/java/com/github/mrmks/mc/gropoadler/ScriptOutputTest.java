@@ -0,0 +1,48 @@
+package com.github.mrmks.mc.gropoadler;
+
+import org.junit.jupiter.api.Test;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptOutputTest {
+
+    @Test
+    void linesReachTheTargetInOrder() {
+        StringWriter target = new StringWriter();
+        PrintWriter out = ScriptOutput.printer(new SimpleScriptContext(), target, "a.Lines");
+        for (int i = 0; i < 100; i++) out.println(i);
+        ScriptOutput.flush(1000);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) expected.append(i).append(System.lineSeparator());
+        assertEquals(expected.toString(), target.toString());
+    }
+
+    @Test
+    void textWithoutLineEndIsWrittenByFlushPending() {
+        StringWriter target = new StringWriter();
+        PrintWriter out = ScriptOutput.printer(new SimpleScriptContext(), target, "a.Prompt");
+        out.print("no line end");
+        ScriptOutput.flush(200);
+        assertEquals("", target.toString());
+
+        ScriptOutput.flushPending();
+        ScriptOutput.flush(1000);
+        assertEquals("no line end", target.toString());
+    }
+
+    @Test
+    void oneBufferPerContextAndWriter() {
+        ScriptContext ctx = new SimpleScriptContext();
+        StringWriter first = new StringWriter(), second = new StringWriter();
+        PrintWriter out = ScriptOutput.printer(ctx, first, "a.Same");
+        assertSame(out, ScriptOutput.printer(ctx, first, "a.Same"));
+        assertNotSame(out, ScriptOutput.printer(new SimpleScriptContext(), first, "a.Same"));
+        assertNotSame(out, ScriptOutput.printer(ctx, second, "a.Same"));
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.mrmks.mc.gropoadler;
+
+import groovy.lang.GroovyClassLoader;
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedScriptPoolTest {
+
+    private final SharedScriptPool pool = SharedScriptPool.INSTANCE;
+    private final MapStorage storage = new MapStorage();
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    void setUp() {
+        pool.logger(LogManager.getLogger("gropoalder"));
+        pool.warmup();
+        pool.attach(storage);
+        storage.put("a.A", "def v(){ 'A' }", 1);
+        storage.put("a.B", "def v(){ 'B' }", 1);
+        storage.put("a.C", "def v(){ 'C' }", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.limits(0, 0);
+        pool.clear();
+    }
+
+    @Test
+    void pooledScriptsUseClassesDeclaredByOtherPooledScripts() throws Exception {
+        storage.put("a.Shapes", "class Point { int x }\ndef v(){ 0 }", 1);
+        storage.put("a.User", "def v(){ new Point(x: 2).x }", 1);
+        pool.loadCache("a.Shapes", null);
+        assertEquals(2, call(pool.loadCache("a.User", null)));
+    }
+
+    @Test
+    void declaredClassesOfCachedBytecodeAreResolvedToo() throws Exception {
+        storage.put("a.Shapes", "class Point { int x }\ndef v(){ 0 }", 1);
+        storage.put("a.User", "def v(){ new Point(x: 3).x }", 1);
+        pool.attachBytecodeCache(dir);
+        pool.loadCache("a.Shapes", null);
+
+        // a restart, a.Shapes is defined from the cache this time
+        pool.clear();
+        pool.warmup();
+        pool.attach(storage);
+        pool.attachBytecodeCache(dir);
+        pool.loadCache("a.Shapes", null);
+        assertEquals(3, call(pool.loadCache("a.User", null)));
+    }
+
+    @Test
+    void storageAttachedBeforeWarmupIsServed() throws Exception {
+        // like the mapped storage at pre-init, before any compiler exists
+        pool.clear();
+        pool.attach(storage);
+        assertEquals("A", call(pool.loadCache("a.A", null)));
+    }
+
+    @Test
+    void precompileStopsAtTheLoadedLimit() throws Exception {
+        pool.limits(2, 0);
+        pool.precompile(2, true);
+        int loaded = 0;
+        for (String name : storage.names()) if (pool.version(name) != -1) loaded++;
+        assertEquals(2, loaded);
+
+        pool.limits(0, 0);
+        pool.precompile(2, true);
+        for (String name : storage.names()) assertEquals(1, pool.version(name), name);
+        assertEquals("B", call(pool.loadCache("a.B", null)));
+    }
+
+    @Test
+    void leastRecentlyUsedIsEvictedOverTheLimit() throws InterruptedException {
+        pool.limits(2, 0);
+        Class<?> a = load("a.A");
+        load("a.B");
+        load("a.A");
+        load("a.C");
+
+        assertSame(a, pool.loadCache("a.A", null));
+        assertEquals(-1, pool.version("a.B"));
+        assertEquals(1, pool.version("a.C"));
+    }
+
+    @Test
+    void versionsInUseAreKept() throws InterruptedException {
+        pool.limits(1, 1);
+        Object engine = new Object();
+        Class<?> a = pool.loadCache("a.A", engine);
+        Thread.sleep(5);
+        load("a.B");
+        load("a.C");
+        assertEquals(1, pool.version("a.A"));
+        assertEquals(-1, pool.version("a.B"));
+
+        Thread.sleep(5);
+        pool.sweep();
+        assertSame(a, pool.loadCache("a.A", engine));
+        assertEquals(-1, pool.version("a.C"));
+    }
+
+    @Test
+    void idleVersionsAreSweptUnlessInUse() throws InterruptedException {
+        pool.limits(0, 1);
+        Object engine = new Object();
+        Class<?> a = pool.loadCache("a.A", engine);
+        load("a.B");
+        Thread.sleep(5);
+        pool.sweep();
+        assertEquals(-1, pool.version("a.B"));
+        // idle as well, but its engine is still reachable
+        assertSame(a, pool.loadCache("a.A", engine));
+    }
+
+    @Test
+    void registeringAgainOnlyAddsTheUser() throws Exception {
+        String text = "def v(){ 'R' }";
+        Class<?> klass;
+        try (GroovyClassLoader loader = new GroovyClassLoader()) {
+            klass = loader.parseClass(text, "R.groovy");
+        }
+        long loaded = loadedCount();
+        int puts = storage.puts.get();
+        Object[] engines = new Object[6];
+        for (int i = 0; i < engines.length; i++) {
+            assertEquals("a.R", pool.register(klass, "a.R", 1, text, false, engines[i] = new Object()));
+        }
+        assertEquals(loaded + 1, loadedCount());
+        assertEquals(puts + 1, storage.puts.get());
+        assertSame(klass, pool.loadCache("a.R", null));
+    }
+
+    @Test
+    void evictedScriptsReloadTheStoredVersion() throws Exception {
+        pool.limits(1, 0);
+        Class<?> old = load("a.A");
+        load("a.B");
+        assertEquals(-1, pool.version("a.A"));
+
+        storage.put("a.A", "def v(){ 'A2' }", 2);
+        Class<?> reloaded = load("a.A");
+        assertNotSame(old, reloaded);
+        assertEquals(2, pool.version("a.A"));
+        assertEquals("A2", reloaded.getMethod("v").invoke(reloaded.getConstructor().newInstance()));
+    }
+
+    // lookups a nanosecond apart would tie on their last use
+    private Class<?> load(String name) throws InterruptedException {
+        Thread.sleep(1);
+        Class<?> klass = pool.loadCache(name, null);
+        assertNotNull(klass, name);
+        return klass;
+    }
+
+    private long loadedCount() {
+        String report = pool.classReport();
+        int i = report.indexOf("loaded=") + "loaded=".length();
+        return Long.parseLong(report.substring(i, report.indexOf(' ', i)));
+    }
+
+    private static Object call(Class<?> script) throws Exception {
+        return script.getMethod("v").invoke(script.getConstructor().newInstance());
+    }
+
+    static final class MapStorage implements SharedScriptPool.DataStorage {
+        private final Map<String, SharedScriptPool.VersionSource> scripts = new ConcurrentHashMap<>();
+        final AtomicInteger puts = new AtomicInteger();
+
+        @Override
+        public void put(String name, String text, int ver) {
+            puts.incrementAndGet();
+            scripts.put(name, new SharedScriptPool.VersionSource() {
+                @Override
+                public String text() {
+                    return text;
+                }
+
+                @Override
+                public int version() {
+                    return ver;
+                }
+            });
+        }
+
+        @Override
+        public SharedScriptPool.VersionSource get(String name) {
+            return scripts.get(name);
+        }
+
+        @Override
+        public Collection<String> names() {
+            return scripts.keySet();
+        }
+    }
+}